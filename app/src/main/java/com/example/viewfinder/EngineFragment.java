@@ -0,0 +1,284 @@
+// Retained (headless) fragment that holds the processing engine and its buffers.
+// The activity and its views are torn down on every pause / configuration change, but this
+// fragment is kept by the FragmentManager (setRetainInstance), so the estimator, the frame
+// buffers and the settings survive: a resume only reattaches new views and reopens the camera
+// instead of allocating several megabytes of full-frame arrays again.
+// Nothing in here may refer to the activity, a view or the camera (they would leak), except
+// the overlay to repaint (mOverlay), which is only set while the activity is resumed.
+//
+// Frames are processed either in onDraw on the UI thread, or on the engine's worker thread
+// (EstimatorProfile.workerThread). Either way process() leaves a copy of the result for the
+// overlay (mShown), so drawing never reads the estimator while the worker is using it.
+// With adaptive rate on, a RateController steps the active profile (mProfile) down from the
+// selected one (mBaseProfile) and back up to hold the processing time inside the budget.
+
+package com.example.viewfinder;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.View;
+
+public class EngineFragment extends Fragment
+{
+	static final String TAG = "EngineFragment";
+	static final int NBUFFERS = 2;	// preview callback buffers (one being filled while one is copied)
+
+	int frame;						// frames processed since the engine was created
+	int mImageWidth, mImageHeight;	// preview size the buffers are allocated for
+	byte[] mYUVData;				// copy of the current preview frame (null: not set up yet)
+	byte[][] mCallbackBuffers;		// handed to the camera (setPreviewCallbackWithBuffer)
+	TTCEstimator mEstimator;
+	final StageTimer mTimer = new StageTimer();	// per-stage latency histograms
+	String TTC1 = "TTC1: ";			// TTC logs, since the engine was created
+	String TTC2 = "TTC2: ";
+	String TTC3 = "TTC3: ";
+
+	// last result, for the overlay (guarded by mShown)
+	final TTCResult mShown = new TTCResult();	// TTCs in 15 fps frames per 4x4 block whatever the profile (EstimatorProfile.ttcScale)
+	int mShownFrame;
+	float mFoeRow, mFoeCol;			// FOE (tracked, or from the last frame) in pixels
+
+	// worker thread (EstimatorProfile.workerThread)
+	HandlerThread mWorker;
+	Handler mWorkerHandler;
+	volatile boolean mBusy;			// mYUVData is being processed, incoming frames are dropped
+	long mArrivalNanos;				// when the frame handed to the worker arrived
+	volatile boolean mPending;		// (UI thread processing) mYUVData holds a frame not processed yet
+
+	// adaptive rate control
+	RateController mRateController;	// null: off
+	volatile int mInterval = 1;		// process every mInterval-th frame
+	int mArrivals;					// frames from the camera (UI thread)
+	volatile int mDroppedFrames;	// frames dropped for lack of time (written by the UI thread only)
+	int mDroppedSeen;				// of those, already reported to the controller
+	volatile View mOverlay;			// repainted after each frame (null while paused)
+
+	// settings (options menu)
+	EstimatorProfile mBaseProfile = EstimatorProfile.ACCURACY;	// selected profile
+	volatile EstimatorProfile mProfile = mBaseProfile;			// active one (a rate control level)
+	boolean mAdaptiveRate = false;	// step the profile down / up to hold the latency budget
+	int[] mPreviewSizes;			// pixel counts of the camera's preview sizes (for the rate ladder)
+	boolean mShowTimings = false;	// show p50/p99 per stage on screen
+	boolean mFixedPoint = false;	// use the integer pipeline
+	boolean mIncremental = false;	// only re-accumulate blocks that changed
+	boolean mBlendModels = true;	// blend the three models rather than pick the best
+	int mTemporalTaps = 3;			// frames in the E_t stencil (2, 3 or 5)
+	boolean mIlluminationCompensation = true;	// undo exposure / flicker changes in E_t
+	boolean mFoeTracking = false;	// follow the FOE and only process a window around it
+
+	public static EngineFragment attach (Activity activity)
+	{ // the activity's engine: the retained one if there is one, otherwise a new one
+		FragmentManager fm = activity.getFragmentManager();
+		EngineFragment engine = (EngineFragment) fm.findFragmentByTag(TAG);
+		if (engine == null) {
+			engine = new EngineFragment();
+			fm.beginTransaction().add(engine, TAG).commit();
+			Log.i(TAG, "new engine");
+		}
+		else Log.i(TAG, "reusing engine, " + engine.frame + " frames so far");
+		return engine;
+	}
+
+	@Override
+	public void onCreate (Bundle savedInstanceState)
+	{
+		super.onCreate(savedInstanceState);
+		setRetainInstance(true);
+		mWorker = new HandlerThread("TTC worker");
+		mWorker.start();
+		mWorkerHandler = new Handler(mWorker.getLooper());
+	}
+
+	@Override
+	public void onDestroy ()
+	{ // only when the activity really finishes (the fragment is retained otherwise)
+		super.onDestroy();
+		mWorker.quit();
+	}
+
+	public synchronized boolean allocate (int width, int height, int dataLength)
+	{ // (re-)allocate the buffers for a preview size, returns false if they already fit
+		if (mYUVData != null && width == mImageWidth && height == mImageHeight && mYUVData.length == dataLength)
+			return false;
+		if (mProfile.logs(EstimatorProfile.LOG_EVENTS)) Log.i(TAG, "allocating buffers for " + width + " x " + height);
+		mImageWidth = width;
+		mImageHeight = height;
+		mYUVData = new byte[dataLength];
+		mCallbackBuffers = new byte[NBUFFERS][dataLength];
+		if (mProfile.needsNewEstimator(mEstimator, width, height)) newEstimator();
+		return true;
+	}
+
+	private void newEstimator ()
+	{
+		mEstimator = new TTCEstimator(mImageWidth, mImageHeight, mProfile.block);
+		mEstimator.setTimer(mTimer);
+	}
+
+	public synchronized void restart ()
+	{ // (on resume) keep the buffers, but the frames from before the pause are no history for E_t
+		mPending = false;
+		if (mEstimator != null) mEstimator.restart();
+	}
+
+	public synchronized void setProfile (EstimatorProfile profile)
+	{ // the estimator side of a profile (the camera side is up to the activity)
+		if (profile.logs(EstimatorProfile.LOG_EVENTS)) Log.i(TAG, "profile " + profile);
+		mBaseProfile = profile;
+		mFixedPoint = profile.fixedPoint;
+		startRateControl();
+	}
+
+	public synchronized void setAdaptiveRate (boolean adaptive)
+	{
+		mAdaptiveRate = adaptive;
+		startRateControl();
+	}
+
+	public synchronized void setPreviewSizes (int[] pixels)
+	{ // the rate ladder only steps to resolutions the camera has
+		if (java.util.Arrays.equals(pixels, mPreviewSizes)) return;
+		mPreviewSizes = pixels;
+		if (mRateController != null) startRateControl();
+	}
+
+	private void startRateControl ()
+	{ // (re)start at the full selected profile
+		mRateController = mAdaptiveRate ? new RateController(mBaseProfile, budgetNanos(mBaseProfile), mPreviewSizes) : null;
+		mInterval = 1;
+		useProfile(mBaseProfile);
+	}
+
+	static long budgetNanos (EstimatorProfile profile)
+	{ // three quarters of a frame period, the rest is for the hand-off and drawing
+		return 750000000L / profile.frameRate;
+	}
+
+	private void useProfile (EstimatorProfile profile)
+	{
+		mProfile = profile;
+		if (mEstimator != null && profile.needsNewEstimator(mEstimator, mImageWidth, mImageHeight))
+			newEstimator();		// new grid, same frame buffers
+	}
+
+	public boolean takeFrame ()
+	{ // (UI thread) false for the frames rate control skips
+		return mInterval == 1 || ++mArrivals % mInterval == 0;
+	}
+
+	public void frameDropped ()
+	{ // (UI thread) a frame came while the last one was still waiting or being processed
+		mDroppedFrames++;
+	}
+
+	public boolean submit (byte[] data, long tArrival)
+	{ // (UI thread) hand a preview frame to the worker, false if it is still busy with the last one
+		if (mBusy) return false;
+		System.arraycopy(data, 0, mYUVData, 0, data.length);
+		mArrivalNanos = tArrival;
+		mBusy = true;
+		mWorkerHandler.post(mProcessTask);
+		return true;
+	}
+
+	private final Runnable mProcessTask = new Runnable() {
+		public void run () {
+			mTimer.record(StageTimer.CAPTURE, System.nanoTime() - mArrivalNanos);
+			try {
+				process();
+			} finally {
+				mBusy = false;
+			}
+			View overlay = mOverlay;
+			if (overlay != null) overlay.postInvalidate();
+		}
+	};
+
+	public synchronized void process ()
+	{ // run the estimator on mYUVData and publish the result for the overlay (UI or worker thread)
+		String TAG = "process";
+		frame++;
+		mPending = false;
+		applySettings();
+		TTCEstimator estimator = mEstimator;
+		long tStart = System.nanoTime();
+		TTCResult result = estimator.processFrame(mYUVData);
+		long nanos = System.nanoTime() - tStart;
+		if (mProfile.logs(EstimatorProfile.LOG_FRAMES)) Log.w(TAG, "frame: " + String.format("%4d", frame));
+
+		// histogram, mean and standard deviation come with the luma decode
+		LumaStats stats = estimator.getStats();
+		if (stats.exposureChanged() && mProfile.logs(EstimatorProfile.LOG_EVENTS))
+			Log.w(TAG, "exposure change: mean " + String.format("%.3f", stats.prevMean() / 255) + " -> " + String.format("%.3f", stats.mean() / 255)
+					+ (mIlluminationCompensation ? ", compensated gain " + String.format("%.3f", estimator.illuminationGain()) : ""));
+
+		// FOE in pixels (x_0, y_0 are in blocks from the origin), or the tracked one
+		int block = estimator.getBlock();
+		FoeTracker tracker = estimator.getFoeTracker();
+		float foeRow = (tracker != null) ? (float) tracker.foeRow() : result.originRow + result.x_0;
+		float foeCol = (tracker != null) ? (float) tracker.foeCol() : result.originCol + result.y_0;
+		float scale = (float) mProfile.ttcScale(mInterval);	// TTCs come in processed frames per block
+		synchronized (mShown) {
+			mShown.set(result);
+			mShown.ttc *= scale;
+			mShown.ttc1 *= scale;
+			mShown.ttc2 *= scale;
+			mShown.ttc3 *= scale;
+			mShownFrame = frame;
+			mFoeRow = foeRow * block;
+			mFoeCol = foeCol * block;
+		}
+		if (mProfile.logs(EstimatorProfile.LOG_FRAMES)) logFrame(mShown);
+		if (mRateController != null) adaptRate(nanos);
+	}
+
+	private void adaptRate (long nanos)
+	{ // feed the rate controller, and switch to the level it picks (a new preview size is left
+	  // to the activity, which compares mProfile with the profile the camera runs at)
+		int dropped = mDroppedFrames - mDroppedSeen;
+		mDroppedSeen += dropped;
+		if (!mRateController.frameProcessed(nanos, dropped)) return;
+		RateController.Level level = mRateController.level();
+		if (mProfile.logs(EstimatorProfile.LOG_EVENTS))
+			Log.i(TAG, "rate control: " + mRateController.lastAdjustment() + ", now " + level);
+		useProfile(level.profile);
+		mInterval = level.interval;
+	}
+
+	private void logFrame (TTCResult result)
+	{ // per-frame logs, and the TTC series since the engine was created
+		Log.w("Average E_t", String.valueOf(result.avgE_t));
+		Log.w("Max E_t", String.valueOf(result.maxE_t));
+		Log.w("TTC", String.format("%.2f case %d confidence %.2f", result.ttc, result.model, result.confidence));
+		if (frame > 330) {
+			TTC1 += String.format("%.2f", result.ttc1) + ", " + String.valueOf(frame) + "; ";
+			TTC2 += String.format("%.2f", result.ttc2) + ", " + String.valueOf(frame) + "; ";
+			TTC3 += String.format("%.2f", result.ttc3) + ", " + String.valueOf(frame) + "; ";
+		}
+		else {
+			TTC1 += String.format("%.2f", result.ttc1) + "; ";
+			TTC2 += String.format("%.2f", result.ttc2) + "; ";
+			TTC3 += String.format("%.2f", result.ttc3) + "; ";
+		}
+		// To produce the TTC vs frame number graph in our report, we scaled the TTC values by a constant (-150),
+		// and we hadn't adjusted the coordinate system yet
+		Log.w("TTC1", TTC1);
+		Log.w("TTC2", TTC2);
+		Log.w("TTC3", TTC3);
+	}
+
+	public void applySettings ()
+	{ // push the menu settings into the estimator (cheap when nothing changed)
+		mEstimator.setFixedPoint(mFixedPoint);
+		mEstimator.setIncremental(mIncremental);
+		mEstimator.getSelector().setBlend(mBlendModels);
+		mEstimator.setTemporalTaps(mTemporalTaps);
+		mEstimator.setIlluminationCompensation(mIlluminationCompensation);
+		mEstimator.setFoeTracking(mFoeTracking);
+	}
+}
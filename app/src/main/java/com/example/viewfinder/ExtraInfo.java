@@ -125,17 +125,19 @@ public class ExtraInfo
 					break;
 			}
 			Log.i(TAG, str);
-			if (MainActivity.mCamera != null) {	// sanity check
-				Log.e(TAG, "ERROR: camera already open");
+			Camera camera;
+			try {
+				camera = Camera.open(k);	// only for a moment (the activity opens its own)
+			} catch (Exception e) {
+				Log.e(TAG, "ERROR: camera open exception " + e);
 				return;
 			}
-			MainActivity.openCamera(k);
-			showCameraInfo(MainActivity.mCamera);	// go show some details
+			showCameraInfo(camera);	// go show some details
             if (bShowFlattenFlag)
-                showCameraFlatten(MainActivity.mCamera); // full set of parameters
+                showCameraFlatten(camera); // full set of parameters
             if (bShowDumpFlag)
-                showCameraDump(MainActivity.mCamera); // full set of parameters
-			MainActivity.releaseCamera(k, false);
+                showCameraDump(camera); // full set of parameters
+			camera.release();
 		}
 	}
 
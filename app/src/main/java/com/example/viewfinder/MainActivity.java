@@ -7,18 +7,25 @@
 package com.example.viewfinder;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ImageFormat;
 import android.graphics.Paint;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
+import android.os.BatteryManager;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
@@ -26,6 +33,8 @@ import android.view.ViewGroup.LayoutParams;
 import android.view.Window;
 import android.view.WindowManager;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.List;
 
@@ -36,14 +45,16 @@ public class MainActivity extends Activity
 	String TAG = "ViewFinder";    // tag for logcat output
     String asterisks = " *******************************************"; // for noticeable marker in log
     protected static int mCam = 0;      // the number of the camera to use (0 => rear facing)
-    protected static Camera mCamera = null;
-    int nPixels = 480 * 640;            // approx number of pixels desired in preview
-    protected static int mCameraHeight;   // preview height (determined later)
-    protected static int mCameraWidth;    // preview width
-    protected static Preview mPreview;
-    protected static DrawOnTop mDrawOnTop;
+    protected Camera mCamera = null;
+    protected int mCameraHeight;        // preview height (determined later)
+    protected int mCameraWidth;         // preview width
+    protected Preview mPreview;         // views live and die with this activity instance,
+    protected DrawOnTop mDrawOnTop;
+    EngineFragment mEngine;             // the estimator and its buffers outlive it (retained fragment)
+    EstimatorProfile mCameraProfile;    // the profile the camera was set up for
+    volatile float mBatteryCelsius = Float.NaN;    // battery temperature, kept up to date by mBatteryReceiver
 	protected static LayoutParams mLayoutParams = new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
-	private static boolean DBG=true;
+	private static boolean DBG=true;	// lifecycle and setup logs (follows the profile's logging level)
 	
     static boolean bDisplayInfoFlag = true;	// show info about display  in log file
     static boolean nCameraInfoFlag = true;	// show info about cameras in log file
@@ -64,6 +75,9 @@ public class MainActivity extends Activity
         // optional dump of useful info into the log
 		if (bDisplayInfoFlag) ExtraInfo.showDisplayInfo(this); // show some info about display
 		if (nCameraInfoFlag) ExtraInfo.showCameraInfoAll(); // show some info about all cameras
+        // processing engine: survives pause / resume and configuration changes
+        mEngine = EngineFragment.attach(this);
+        DBG = mEngine.mProfile.logs(EstimatorProfile.LOG_EVENTS);
     }
 
     // Because the CameraDevice object is not a shared resource,
@@ -75,6 +89,11 @@ public class MainActivity extends Activity
         super.onPause();
         if (DBG) Log.v(TAG, "onPause" + asterisks);
         releaseCamera(mCam, true);    // release camera here
+        unregisterReceiver(mBatteryReceiver);
+        mEngine.mOverlay = null;
+        mCameraProfile = null;
+        mPreview = null;    // the views go, the engine (mEngine) stays
+        mDrawOnTop = null;
     }
 
     // which means the CameraDevice has to be (re-)opened when the activity is (re-)started
@@ -85,10 +104,14 @@ public class MainActivity extends Activity
         super.onResume();
         if (DBG) Log.v(TAG, "onResume" + asterisks);
         openCamera(mCam);    // (re-)open camera here
-        getPreviewSize(mCamera, nPixels);    // pick an available preview size
-
-        // Create our DrawOnTop view.
-        mDrawOnTop = new DrawOnTop(this);
+        mEngine.restart();    // same buffers, new frame history
+        registerReceiver(mBatteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        mEngine.setPreviewSizes(previewPixels(mCamera));    // what rate control can step down to
+        getPreviewSize(mCamera, mEngine.mProfile.previewPixels);    // pick an available preview size
+
+        // Create our DrawOnTop view (only paints, the buffers are in mEngine).
+        mDrawOnTop = new DrawOnTop(this, mEngine);
+        mEngine.mOverlay = mDrawOnTop;    // repainted by the worker thread after each frame
         // Create our Preview view
         mPreview = new Preview(this, mDrawOnTop);
         // and set preview as the content of our activity.
@@ -105,6 +128,153 @@ public class MainActivity extends Activity
         releaseCamera(mCam, true);    // if it hasn't been released yet...
     }
 
+    @Override
+    public boolean onCreateOptionsMenu (Menu menu)
+    {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu (Menu menu)
+    {
+        EstimatorProfile profile = mEngine.mBaseProfile;
+        menu.findItem(R.id.action_profile_latency).setChecked(profile == EstimatorProfile.LATENCY);
+        menu.findItem(R.id.action_profile_balanced).setChecked(profile == EstimatorProfile.BALANCED);
+        menu.findItem(R.id.action_profile_accuracy).setChecked(profile == EstimatorProfile.ACCURACY);
+        menu.findItem(R.id.action_adaptive_rate).setChecked(mEngine.mAdaptiveRate);
+        menu.findItem(R.id.action_timing_overlay).setChecked(mEngine.mShowTimings);
+        menu.findItem(R.id.action_fixed_point).setChecked(mEngine.mFixedPoint);
+        menu.findItem(R.id.action_incremental).setChecked(mEngine.mIncremental);
+        menu.findItem(R.id.action_blend_models).setChecked(mEngine.mBlendModels);
+        menu.findItem(R.id.action_illumination).setChecked(mEngine.mIlluminationCompensation);
+        menu.findItem(R.id.action_foe_tracking).setChecked(mEngine.mFoeTracking);
+        menu.findItem(R.id.action_temporal_taps).setTitle(getString(R.string.action_temporal_taps, mEngine.mTemporalTaps));
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected (MenuItem item)
+    {
+        switch (item.getItemId()) {
+            case R.id.action_profile_latency:
+                setProfile(EstimatorProfile.LATENCY);
+                return true;
+            case R.id.action_profile_balanced:
+                setProfile(EstimatorProfile.BALANCED);
+                return true;
+            case R.id.action_profile_accuracy:
+                setProfile(EstimatorProfile.ACCURACY);
+                return true;
+            case R.id.action_adaptive_rate:
+                mEngine.setAdaptiveRate(!mEngine.mAdaptiveRate);
+                updateCamera();     // back to the full profile
+                return true;
+            case R.id.action_timing_overlay:
+                mEngine.mShowTimings = !mEngine.mShowTimings;
+                return true;
+            case R.id.action_fixed_point:
+                mEngine.mFixedPoint = !mEngine.mFixedPoint;
+                return true;
+            case R.id.action_incremental:
+                mEngine.mIncremental = !mEngine.mIncremental;
+                return true;
+            case R.id.action_blend_models:
+                mEngine.mBlendModels = !mEngine.mBlendModels;
+                return true;
+            case R.id.action_temporal_taps:	// cycle 2 -> 3 -> 5 -> 2
+                mEngine.mTemporalTaps = (mEngine.mTemporalTaps == 2) ? 3 : (mEngine.mTemporalTaps == 3) ? 5 : 2;
+                return true;
+            case R.id.action_illumination:
+                mEngine.mIlluminationCompensation = !mEngine.mIlluminationCompensation;
+                return true;
+            case R.id.action_foe_tracking:
+                mEngine.mFoeTracking = !mEngine.mFoeTracking;
+                return true;
+            case R.id.action_dump_timings:
+                dumpStageTimings(new File(getFilesDir(), "stage_timings.txt"));
+                return true;
+            case R.id.action_layout_benchmark:
+                runLayoutBenchmark(new File(getFilesDir(), "layout_benchmark.txt"));
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    // Switch to another profile: the estimator side at once, the camera only as far as needed
+    void setProfile (EstimatorProfile profile)
+    {
+        if (profile == mEngine.mBaseProfile) return;
+        mEngine.setProfile(profile);
+        DBG = profile.logs(EstimatorProfile.LOG_EVENTS);
+        updateCamera();
+    }
+
+    // Bring the camera in line with the engine's active profile (selected, or set by rate control)
+    void updateCamera ()
+    {
+        EstimatorProfile profile = mEngine.mProfile;
+        if (profile == mCameraProfile || mCameraProfile == null || mCamera == null || mPreview == null)
+            return;     // (not set up yet: surfaceChanged starts with the active profile anyway)
+        EstimatorProfile old = mCameraProfile;
+        mCameraProfile = profile;
+        mPreview.updateCamera(old, profile);
+    }
+
+    // Battery temperature, the thermal input to rate control. The battery broadcast is sticky, so
+    // the receiver gets the current state as soon as it is registered and then every change,
+    // and onDraw only reads mBatteryCelsius (no system call per frame).
+    final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive (Context context, Intent battery)
+        {
+            int tenths = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, -1);
+            mBatteryCelsius = (tenths < 0) ? Float.NaN : tenths / 10f;
+        }
+    };
+
+    // Write the per-stage latency percentiles (and the rate control adjustments) collected so far to a file
+    public boolean dumpStageTimings (File file)
+    {
+        String TAG = "dumpStageTimings";
+        FileWriter out = null;
+        try {
+            out = new FileWriter(file);
+            mEngine.mTimer.dump(out);
+            RateController controller = mEngine.mRateController;
+            if (controller != null) controller.dump(out);    // with every adjustment so far
+            Log.i(TAG, "Stage timings written to " + file);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "ERROR: could not write " + file + " " + e);
+            return false;
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException e) { /* ignore */ }
+            }
+        }
+    }
+
+    // Run the plane layout benchmark off the UI thread, report goes to the log and a file
+    void runLayoutBenchmark (final File file)
+    {
+        new Thread(new Runnable() {
+            public void run() {
+                String TAG = "LayoutBenchmark";
+                String report = LayoutBenchmark.run(640, 480, 100);
+                Log.i(TAG, report);
+                try {
+                    FileWriter out = new FileWriter(file);
+                    out.write(report);
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "ERROR: could not write " + file + " " + e);
+                }
+            }
+        }).start();
+    }
+
     //////////////////////////////////////////////////////////////////////////////
 
     // Check if this device actually has a camera!
@@ -113,7 +283,7 @@ public class MainActivity extends Activity
         return context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA);
     }
 
-	protected static void openCamera (int nCam)
+	protected void openCamera (int nCam)
 	{
         String TAG = "openCamera";
         if (mCamera == null) {
@@ -128,7 +298,7 @@ public class MainActivity extends Activity
 		else Log.e(TAG, "Camera already open");
     }
 
-	protected static void releaseCamera (int nCam, boolean previewFlag)
+	protected void releaseCamera (int nCam, boolean previewFlag)
 	{
 		String TAG = "releaseCamera";
 		if (mCamera != null) {
@@ -143,11 +313,11 @@ public class MainActivity extends Activity
 		else Log.e(TAG, "No camera to release");
 	}
 
-	private static void getPreviewSize (Camera mCamera, int nPixels)
+	private void getPreviewSize (Camera mCamera, int nPixels)
 	{ //	pick one of the available preview size
         String TAG = "getPreviewSize";
         Camera.Parameters params = mCamera.getParameters();
-        List<Camera.Size> cSizes = params.getSupportedPictureSizes();
+        List<Camera.Size> cSizes = params.getSupportedPreviewSizes();
         int dPixels, dMinPixels = -1;
         if (DBG) Log.i(TAG, "Looking for about " + nPixels + " pixels");
         for (Camera.Size cSize : cSizes) {    // step through available camera preview image sizes
@@ -163,88 +333,51 @@ public class MainActivity extends Activity
         if (DBG) Log.i(TAG, "Nearest fit available preview image size: " + mCameraHeight + " x " + mCameraWidth);
     }
 
+    static int[] previewPixels (Camera camera)
+    { // pixel counts of the supported preview sizes, in the order getPreviewSize sees them
+        List<Camera.Size> sizes = camera.getParameters().getSupportedPreviewSizes();
+        int[] pixels = new int[sizes.size()];
+        for (int k = 0; k < pixels.length; k++) pixels[k] = sizes.get(k).width * sizes.get(k).height;
+        return pixels;
+    }
+
 //------- nested class DrawOnTop ---------------------------------------------------------------
 
 	class DrawOnTop extends View
 	{
-        int frame;
-        Bitmap mBitmap;
-        byte[] mYUVData;
-        int[] mRGBData;
-        float[] brightness;
-        float[] prevBrightness;
-        float[] deltaBrightness;
-        float[][] E;
-        float[][] prevE;
-        float[][] E_x;
-        float[][] E_y;
-        float[][] E_t;
-        float[][] prevE_x;
-        float[][] prevE_y;
-        float[][] prevE_t;
-        int mImageWidth, mImageHeight;
-        int[] mRedHistogram;
-        int[] mGreenHistogram;
-        int[] mBlueHistogram;
+        final EngineFragment mEngine;   // estimator, frame buffers and settings (outlive this view)
 		Paint mPaintBlack;
 		Paint mPaintYellow;
 		Paint mPaintRed;
 		Paint mPaintGreen;
 		Paint mPaintBlue;
+		Paint mPaintTiming;		// small text for the stage timing overlay
 		int mTextsize = 90;		// controls size of text on screen
 		int mLeading;			// spacing between text lines
         RectF barRect = new RectF();	// used in drawing histogram
-		double redMean, greenMean, blueMean;
-        float brightnessMean;	// computed results
-		double redStdDev, greenStdDev, blueStdDev;
-        int totalBrightness;
-        float prevBrightnessMean;
 		String TAG = "DrawOnTop";       // for logcat output
-        String TTC1;
-        String TTC2;
-        String TTC3;
+        long mFrameArrivalNanos;		// when the preview callback handed over the current frame
+        final TTCResult mResult = new TTCResult();	// copy of the engine's last result
 
 
-        public DrawOnTop (Context context)
+        public DrawOnTop (Context context, EngineFragment engine)
 		{ // constructor
             super(context);
 
-            frame = 0;
-            brightness = new float[480*640];
-            prevBrightness = new float[480*640];
-
-            prevE_x = new float[480][640];
-            prevE_y = new float[480][640];
-            prevE_t = new float[480][640];
-
-            E = new float[480][640];
-            prevE = new float[480][640];
-            E_x = new float[480][640];
-            E_y = new float[480][640];
-            E_t = new float[480][640];
+            mEngine = engine;     // buffers are set up (once) in Preview - surfaceChanged
 
             mPaintBlack = makePaint(Color.BLACK);
             mPaintYellow = makePaint(Color.YELLOW);
             mPaintRed = makePaint(Color.RED);
             mPaintGreen = makePaint(Color.GREEN);
             mPaintBlue = makePaint(Color.BLUE);
+            mPaintTiming = makePaint(Color.WHITE);
+            mPaintTiming.setTextSize(mTextsize / 3);
 
-            mBitmap = null;	// will be set up later in Preview - PreviewCallback
-            mYUVData = null;
-            mRGBData = null;
-            deltaBrightness = null;
-
-            mRedHistogram = new int[256];
-            mGreenHistogram = new int[256];
-            mBlueHistogram = new int[256];
             barRect = new RectF();    // moved here to reduce GC
 			if (DBG) Log.i(TAG, "DrawOnTop textsize " + mTextsize);
 			mLeading = mTextsize * 6 / 5;    // adjust line spacing
 			if (DBG) Log.i(TAG, "DrawOnTop Leading " + mLeading);
-            TTC1 = "TTC1: ";
-            TTC2 = "TTC2: ";
-            TTC3 = "TTC3: ";
-
         }
 
 		Paint makePaint (int color)
@@ -257,6 +390,13 @@ public class MainActivity extends Activity
             return mPaint;
         }
 
+        @Override
+        public boolean onTouchEvent (MotionEvent event)
+        { // tap on overlay brings up the options menu (there is no action bar in full screen)
+            if (event.getAction() == MotionEvent.ACTION_UP) openOptionsMenu();
+            return true;
+        }
+
 		// Called when preview is drawn on screen
 		// Compute some statistics and draw text and histograms on screen
 
@@ -264,207 +404,35 @@ public class MainActivity extends Activity
         protected void onDraw (Canvas canvas) 
         {
 			String TAG="onDraw";
-			if (mBitmap == null) {	// sanity check
-				Log.w(TAG, "mBitMap is null");
+			if (mEngine.mYUVData == null) {	// sanity check
+				Log.w(TAG, "mYUVData is null");
 				super.onDraw(canvas);
 				return;	// because not yet set up
 			}
-
-            if (frame > 1) {
-                prevBrightness = new float[480*640];
-                System.arraycopy( brightness, 0, prevBrightness, 0, 480*640);
-            }
-
-            frame += 1;
-            Log.w(TAG, "frame: " + String.format("%4d", (int) frame));
-
-			// Convert image from YUV to RGB format:
-			//decodeYUV420SP(mRGBData, brightness, mYUVData, mImageWidth, mImageHeight);
-            decodeYUV420SPGrayscale(mRGBData, brightness, mYUVData, mImageWidth, mImageHeight);
-
-			// Now do some image processing here:
-
-			// Calculate histograms
-//			calculateIntensityHistograms(mRGBData, mRedHistogram, mGreenHistogram, mBlueHistogram,
-//										 mImageWidth, mImageHeight);
-
-			// calculate means and standard deviations
-//			calculateMeanAndStDev(mRedHistogram, mGreenHistogram, mBlueHistogram, mImageWidth * mImageHeight, brightness);
-
-            // calculate E, prevE, E_x, E_y, E_t
-            for (int i=0; i < 480; i++){
-                for (int j=0; j < 640; j++){
-                    E[i][j] = brightness[i*640 + j];
-                    prevE[i][j] = prevBrightness[i*640 + j];
-                }
-            }
-
-            // calculate differences in brightness
-            for (int a=0; a < 480; a++) {
-                for (int b = 0; b < 640; b++) {
-                    prevE_x[a][b] = (frame > 1) ? E_x[a][b] : 0;
-                    prevE_y[a][b] = (frame > 1) ? E_y[a][b] : 0;
-                    prevE_t[a][b] = (frame > 1) ? E_t[a][b] : 0;
-                    E_x[a][b] = (a == 479) ? 0 : E[a][b] - E[a + 1][b];
-                    E_y[a][b] = (b == 639) ? 0 : E[a][b] - E[a][b + 1];
-                    E_t[a][b] = E[a][b] - prevE[a][b];
-                }
-            }
-
-
-            // subsample
-            float[][] subE_x = new float[120][160];
-            float[][] subE_y = new float[120][160];
-            float[][] subE_t = new float[120][160];
-
-            int newX = -1;
-            int newY;
-            float avgE_t = 0;
-            float maxE_t = 0;
-            for (int a=0; a < 480; a=a+4) {
-                newY = -1;
-                newX++;
-                for (int b = 0; b < 640; b = b + 4) {
-                    newY++;
-                    int xEnd = Math.min(480, a + 4);
-                    int yEnd = Math.min(640, b + 4);
-                    float xAvg = 0;
-                    float yAvg = 0;
-                    float tAvg = 0;
-                    for (int xStart = a; xStart < xEnd; xStart++) {
-                        for (int yStart = b; yStart < yEnd; yStart++) {
-                            xAvg += E_x[xStart][yStart] + prevE_x[xStart][yStart];
-                            yAvg += E_y[xStart][yStart] + prevE_y[xStart][yStart];
-                            tAvg += E_t[xStart][yStart] + prevE_t[xStart][yStart];
-                        }
-                    }
-                    xAvg /= 2*((xEnd - a) * (yEnd - b));
-                    yAvg /= 2*((xEnd - a) * (yEnd - b));
-                    tAvg /= 2*((xEnd - a) * (yEnd - b));
-                    subE_x[newX][newY] = xAvg;
-                    subE_y[newX][newY] = yAvg;
-                    subE_t[newX][newY] = tAvg;
-                    avgE_t += tAvg;
-                    maxE_t = Math.max(Math.abs(tAvg), maxE_t);
-                }
-            }
-
-            avgE_t /=(120*160);
-            Log.w("Average E_t", String.valueOf(avgE_t));
-            Log.w("Max E_t", String.valueOf(maxE_t));
-
-            float E_threshold = Math.abs(avgE_t)/2;
-
-
-            //compute summations
-            float sum_g_squared = 0;
-            float sum_ex_ey = 0;
-            float sum_g_ex = 0;
-            float sum_g_ey = 0;
-            float sum_g_et = 0;
-            float sum_ex_squared = 0;
-            float sum_ey_squared = 0;
-            float sum_ey_et = 0;
-            float sum_ex_et = 0;
-            float sum_g_squared_x_y = 0;
-            float sum_g_x_et = 0;
-            float sum_g_y_et = 0;
-            float sum_g_squared_x = 0;
-            float sum_g_squared_y = 0;
-            float sum_g_squared_x_squared = 0;
-            float sum_g_squared_y_squared = 0;
-            int x_offset = 60; // adjust coordinate system
-            int y_offset = 80; // adjust coordinate system
-            for (int a=0; a < 120; a++){
-                for (int b=0; b < 160; b++){
-                    //if (Math.abs(subE_y[a][b]) > E_threshold) {
-                    float G = ((a-x_offset) / 1) * subE_x[a][b] + ((b-y_offset) / 1) * subE_y[a][b];
-                    sum_g_squared += G * G;
-                    sum_ex_ey += subE_x[a][b] * subE_y[a][b];
-                    sum_g_ex += G * subE_x[a][b];
-                    sum_g_ey += G * subE_y[a][b];
-                    sum_g_et += G * subE_t[a][b];
-                    sum_ex_squared += subE_x[a][b] * subE_x[a][b];
-                    sum_ey_squared += subE_y[a][b] * subE_y[a][b];
-                    sum_ey_et += subE_y[a][b] * subE_t[a][b];
-                    sum_ex_et += subE_x[a][b] * subE_t[a][b];
-                    sum_g_squared_x_y += G * G * ((a-x_offset) / 1) * ((b-y_offset) / 1);
-                    sum_g_x_et += G * ((a-x_offset) / 1) * subE_t[a][b];
-                    sum_g_y_et += G * ((b-y_offset) / 1) * subE_t[a][b];
-                    sum_g_squared_x += G * G * ((a-x_offset) / 1);
-                    sum_g_squared_y += G * G * ((b-y_offset) / 1);
-                    sum_g_squared_x_squared += G * G * ((a-x_offset) / 1) * ((a-x_offset) / 1);
-                    sum_g_squared_y_squared += G * G * ((b-y_offset) / 1) * ((b-y_offset) / 1);
-                    //}
-                }
-            }
-
-            //case 1
-            float ttc = - sum_g_squared / sum_g_et;
-
-            //case 2
-            float n1_c2 = (-sum_g_et*sum_ex_ey + sum_ey_et*sum_g_ex)*(sum_ex_squared*sum_ey_squared-(sum_ex_ey*sum_ex_ey));
-            float n2_c2 = (-sum_ey_et * sum_ex_squared + sum_ex_et * sum_ex_ey)*(sum_g_ey*sum_ex_ey - sum_ey_squared*sum_g_ex);
-            float d1_c2 = (sum_g_squared*sum_ex_ey - sum_g_ey * sum_g_ex)*(sum_ex_squared*sum_ey_squared-(sum_ex_ey*sum_ex_ey));
-            float d2_c2 = (sum_g_ey*sum_ex_squared - sum_g_ex*sum_ex_ey)*(sum_g_ey*sum_ex_ey - sum_ey_squared*sum_g_ex);
-            float c2 = (n1_c2-n2_c2)/(d1_c2-d2_c2);
-            float ttc2 = 1/c2;
-
-            float n_b2_1 = -sum_ey_et*sum_ex_squared + sum_ex_et*sum_ex_ey - c2*(sum_g_ey*sum_ex_squared-sum_g_ex*sum_ex_ey);
-            float d_b2_1 = (sum_ex_squared*sum_ey_squared-sum_ex_ey*sum_ex_ey);
-
-            float n_b2_2 = -sum_g_et*sum_ex_ey+sum_ey_et*sum_g_ex-c2*(sum_g_squared*sum_ex_ey-sum_g_ey*sum_g_ex);
-            float d_b2_2 = sum_g_ey*sum_ex_ey-sum_ey_squared*sum_g_ex;
-
-            //these are equal (sanity check)
-            float b2_1 = n_b2_1/d_b2_1;
-            float b2_2 = n_b2_2/d_b2_2;
-            //Log.w("b2_1: ", String.valueOf(b2_1));
-            //Log.w("b2_2: ", String.valueOf(b2_2));
-
-            //these are equal (sanity check)
-            float a2_1 = (-sum_ex_et - b2_1*sum_ex_ey - c2*sum_g_ex)/sum_ex_squared;
-            float a2_2 = (-sum_ey_et - b2_1*sum_ey_squared - c2*sum_g_ey)/sum_ex_ey;
-            float a2_3 = (-sum_g_et - b2_1*sum_g_ey - c2*sum_g_squared)/sum_g_ex;
-            //Log.w("a2_1: ", String.valueOf(a2_1));
-            //Log.w("a2_2: ", String.valueOf(a2_2));
-            //Log.w("a2_3: ", String.valueOf(a2_3));
-
-            //FOE
-            float x_0 = -a2_1 / c2;
-            float y_0 = -b2_1 / c2;
-
-
-            //case 3
-            double numerator1_1 = (-sum_g_et*sum_g_squared_x_y + sum_g_y_et*sum_g_squared_x)*(sum_g_squared_y_squared*sum_g_squared_x_squared-sum_g_squared_x_y*sum_g_squared_x_y);
-            double numerator1_2 = (-sum_g_y_et*sum_g_squared_x_squared+sum_g_x_et*sum_g_squared_x_y)*(sum_g_squared_y*sum_g_squared_x_y-sum_g_squared_y_squared*sum_g_squared_x_squared);
-            double denom1_1 = (sum_g_squared*sum_g_squared_x_y-sum_g_squared_y*sum_g_squared_x)*(sum_g_squared_y_squared*sum_g_squared_x_squared - sum_g_squared_x_y*sum_g_squared_x_y);
-            double denom1_2 = (sum_g_squared_y*sum_g_squared_x_squared-sum_g_squared_x*sum_g_squared_x_y)*(sum_g_squared_y*sum_g_squared_x_y-sum_g_squared_y_squared*sum_g_squared_x);
-            double c3 = (numerator1_1-numerator1_2)/(denom1_1-denom1_2);
-            double ttc3 = 1/c3;
-
-            if (frame > 330){
-                TTC1 += String.format("%.2f", ttc)+ ", " + String.valueOf(frame)+ "; ";
-                TTC2 += String.format("%.2f", ttc2)+ ", " + String.valueOf(frame)+ "; ";
-                TTC3 += String.format("%.2f", ttc3)+ ", " + String.valueOf(frame)+ "; ";
+            // process here, unless the worker thread does (it repaints when a frame is done),
+            // and only a new frame: other redraws (menu, layout) must not push the same one again
+            if (!mEngine.mProfile.workerThread && mEngine.mPending && !mEngine.mBusy) {
+                long tStart = System.nanoTime();
+                if (mFrameArrivalNanos != 0) mEngine.mTimer.record(StageTimer.CAPTURE, tStart - mFrameArrivalNanos);
+                mEngine.process();
             }
-            else {
-                TTC1 += String.format("%.2f", ttc)+ "; ";
-                TTC2 += String.format("%.2f", ttc2)+ "; ";
-                TTC3 += String.format("%.2f", ttc3)+ "; ";
+            int frame;
+            float x_0, y_0;     // FOE in pixels
+            synchronized (mEngine.mShown) {
+                mResult.set(mEngine.mShown);
+                frame = mEngine.mShownFrame;
+                x_0 = mEngine.mFoeRow;
+                y_0 = mEngine.mFoeCol;
             }
+            updateCamera();     // rate control may have picked another preview size or frame rate
+            RateController controller = mEngine.mRateController;
+            if (controller != null) controller.setTemperature(mBatteryCelsius);
+            TTCResult result = mResult;
+            float ttc = result.ttc1;
+            float ttc2 = result.ttc2;
+            double ttc3 = result.ttc3;
 
-            // To produce the TTC vs frame number graph in our report, we scaled the TTC values by a constant (-150),
-            // and we hadn't adjusted the coordinate system yet
-            Log.w("TTC1", TTC1);
-            Log.w("TTC2", TTC2);
-            Log.w("TTC3", TTC3);
-
-            float sum = 0;
-            for (int i=0; i < nPixels; i++) {
-                sum = sum + prevBrightness[i];
-            }
-            prevBrightnessMean = sum / nPixels;
+            long tDraw = System.nanoTime();
 
 			// Finally, use the results to draw things on top of screen:
 			int canvasHeight = canvas.getHeight();
@@ -481,16 +449,19 @@ public class MainActivity extends Activity
             drawTextOnBlack(canvas, "TTC3: " + String.format("%s", ttc3), marginWidth+10, 3 * mLeading, mPaintGreen);
             drawTextOnBlack(canvas, "FOE: (" + String.format("%s", x_0) + ", " + String.format("%s", y_0) + ")", marginWidth+10, 4 * mLeading, mPaintRed);
             drawTextOnBlack(canvas, "frame: " + String.format("%4d", frame), marginWidth+10, 5 * mLeading, mPaintGreen);
+            drawTextOnBlack(canvas, "TTC: " + String.format("%.1f", result.ttc) + " (case " + result.model
+                    + ", " + String.format("%.0f", 100 * result.confidence) + "%)", marginWidth+10, 6 * mLeading, mPaintYellow);
 
 			float barWidth = ((float) newImageWidth) / 25;
-            int left1 = (int) (newImageWidth - 3*marginWidth - 3*barWidth);
-            int left2 = (int) (newImageWidth - 2*marginWidth - 2*barWidth);
             int left3 = (int) (newImageWidth - marginWidth - barWidth);
-            drawTTCBar(canvas, mPaintRed, ttc, canvasHeight, left1, barWidth);
-            drawTTCBar(canvas, mPaintYellow, ttc2/10, canvasHeight, left2, barWidth);
-            drawTTCBar(canvas, mPaintGreen, (float) ttc3*1000, canvasHeight, left3, barWidth);
-            drawFOE(canvas, mPaintRed, x_0, y_0, canvasHeight, newImageWidth);
+            // one bar for the published TTC, in the color of the model it came from
+            Paint[] modelPaint = { mPaintBlack, mPaintRed, mPaintYellow, mPaintGreen };
+            if (!Float.isNaN(result.ttc))
+                drawTTCBar(canvas, modelPaint[result.model], result.ttc, canvasHeight, left3, barWidth);
+            drawFOE(canvas, mPaintRed, x_0, y_0, mEngine.mImageHeight, mEngine.mImageWidth, canvasHeight, newImageWidth);
+            if (mEngine.mShowTimings) drawStageTimings(canvas, marginWidth+10, 7 * mLeading);
             super.onDraw(canvas);
+            mEngine.mTimer.record(StageTimer.DRAW, System.nanoTime() - tDraw);
 
 		} // end onDraw method
 
@@ -528,75 +499,6 @@ public class MainActivity extends Activity
             }
         }
 
-		public void decodeYUV420SPGrayscale (int[] rgb, float[] brightness, byte[] yuv420sp, int width, int height)
-		{ // extract grey RGB format image --- not used currently
-			final int frameSize = width * height;
-
-			// This is much simpler since we can ignore the u and v components
-            for (int pix = 0; pix < frameSize; pix++) {	
-                int y = (0xFF & ((int) yuv420sp[pix])) - 16;
-                if (y < 0) y = 0;
-                if (y > 0xFF) y = 0xFF;
-                rgb[pix] = 0xFF000000 | (y << 16) | (y << 8) | y;
-                brightness[pix] = (float) y/255;
-            } 
-        }
-
-        // This is where we finally actually do some "image processing"!
-		public void calculateIntensityHistograms(int[] rgb, int[] redHistogram, int[] greenHistogram, int[] blueHistogram, int width, int height)
-		{
-            final int dpix = 1;
-            int red, green, blue, bin, pixVal;
-            for (bin = 0; bin < 256; bin++) { // reset the histograms
-                redHistogram[bin] = 0;		
-                greenHistogram[bin] = 0;
-                blueHistogram[bin] = 0;
-            }
-            for (int pix = 0; pix < width * height; pix += dpix) {
-                pixVal = rgb[pix];
-                blue = pixVal & 0xFF;
-                blueHistogram[blue]++;
-                pixVal = pixVal >> 8;
-                green = pixVal & 0xFF;
-                greenHistogram[green]++;
-                pixVal = pixVal >> 8;
-                red = pixVal & 0xFF;
-                redHistogram[red]++;
-            }
-		}
-	
-		private void calculateMeanAndStDev (int mRedHistogram[], int mGreenHistogram[], int mBlueHistogram[], int nPixels, float[] brightness)
-		{
-			// Calculate first and second moments (zeroth moment equals nPixels)
-			double red1stMoment = 0, green1stMoment = 0, blue1stMoment = 0;
-			double red2ndMoment = 0, green2ndMoment = 0, blue2ndMoment = 0;
-			double binsquared = 0;
-			for (int bin = 0; bin < 256; bin++) {
-				binsquared += (bin << 1) - 1;	// n^2 - (n-1)^2 = 2*n - 1
-				red1stMoment   += mRedHistogram[bin]   * bin;
-				green1stMoment += mGreenHistogram[bin] * bin;
-				blue1stMoment  += mBlueHistogram[bin]  * bin;
-				red2ndMoment   += mRedHistogram[bin]   * binsquared;
-				green2ndMoment += mGreenHistogram[bin] * binsquared;
-				blue2ndMoment  += mBlueHistogram[bin]  * binsquared;
-
-			} // bin
-
-            float sum = 0;
-            for (int i=0; i < nPixels; i++) {
-                sum = sum + brightness[i];
-            }
-            brightnessMean = sum / nPixels;
-
-            redMean   = red1stMoment   / nPixels;
-			greenMean = green1stMoment / nPixels;
-			blueMean  = blue1stMoment  / nPixels;
-
-			redStdDev   = Math.sqrt(red2ndMoment   / nPixels - redMean * redMean);
-			greenStdDev = Math.sqrt(green2ndMoment / nPixels - greenMean * greenMean);
-			blueStdDev  = Math.sqrt(blue2ndMoment  / nPixels - blueMean * blueMean);
-		}
-
 		private void drawTextOnBlack (Canvas canvas, String str, int rPos, int cPos, Paint mPaint)
 		{ // make text stand out from background by providing thin black border
             Typeface font = Typeface.createFromAsset(getAssets(), "fonts/sqmarket-regular.ttf");
@@ -642,11 +544,27 @@ public class MainActivity extends Activity
             canvas.drawRect(barRect, mPaint);
         }
 
-        void drawFOE(Canvas canvas, Paint mPaint, float x_0, float y_0, int canvasHeight, int newImageWidth) {
+        void drawStageTimings (Canvas canvas, int left, int top)
+        { // debug overlay: p50 / p99 latency per pipeline stage, and rate control
+            int lineHeight = mTextsize / 2;
+            for (int s = 0; s < StageTimer.NSTAGES; s++) {
+                String str = String.format("%-10s p50 %6.2f  p99 %6.2f ms", StageTimer.NAMES[s],
+                        mEngine.mTimer.percentileMicros(s, 50) / 1000.0, mEngine.mTimer.percentileMicros(s, 99) / 1000.0);
+                canvas.drawText(str, left, top + s * lineHeight, mPaintTiming);
+            }
+            RateController controller = mEngine.mRateController;
+            if (controller != null) {
+                canvas.drawText(controller.summary(), left, top + StageTimer.NSTAGES * lineHeight, mPaintTiming);
+                RateController.Adjustment last = controller.lastAdjustment();
+                if (last != null) canvas.drawText(last.toString(), left, top + (StageTimer.NSTAGES + 1) * lineHeight, mPaintTiming);
+            }
+        }
+
+        void drawFOE(Canvas canvas, Paint mPaint, float x_0, float y_0, int imageHeight, int imageWidth, int canvasHeight, int newImageWidth) {
             if (x_0 > 0 && y_0 > 0){
-                barRect.bottom = y_0/640 * canvasHeight;
+                barRect.bottom = y_0/imageWidth * canvasHeight;
                 barRect.top = barRect.bottom - 30;
-                barRect.left = x_0/480 * newImageWidth;
+                barRect.left = x_0/imageHeight * newImageWidth;
                 barRect.right = barRect.left + 30;
                 canvas.drawRect(barRect, mPaint);
             }
@@ -661,7 +579,9 @@ public class MainActivity extends Activity
     {	// deal with preview that will be shown on screen
         SurfaceHolder mHolder;
         DrawOnTop mDrawOnTop;
+        PreviewCallback mPreviewCallback;
         boolean mFinished;
+        boolean mBuffersQueued;	// the engine's callback buffers were handed to the camera
         String TAG="PreView";	// tag for LogCat
 
         public Preview (Context context, DrawOnTop drawOnTop)
@@ -682,7 +602,6 @@ public class MainActivity extends Activity
         public void surfaceCreated (SurfaceHolder holder)
 		{
 			String TAG="surfaceCreated";
-            PreviewCallback mPreviewCallback;
             if (mCamera == null) {	// sanity check
                 Log.e(TAG, "ERROR: camera not open");
                 System.exit(0);
@@ -703,21 +622,40 @@ public class MainActivity extends Activity
             mPreviewCallback = new PreviewCallback() {
                 public void onPreviewFrame(byte[] data, Camera camera) { // callback
                     String TAG = "onPreviewFrame";
-                    if ((mDrawOnTop == null) || mFinished) return;
-                    if (mDrawOnTop.mBitmap == null)  // need to initialize the drawOnTop companion?
-                        mDrawOnTop.prevBrightness = mDrawOnTop.brightness;
-
-						setupArrays(data, camera);
-                    // Pass YUV image data to draw-on-top companion
-                    System.arraycopy(data, 0, mDrawOnTop.mYUVData, 0, data.length);
-                    mDrawOnTop.invalidate();
+                    if (mFinished) return;
+                    long tArrival = System.nanoTime();
+                    if (mEngine.mYUVData == null || mEngine.mYUVData.length != data.length) {
+                        // (a buffer queued before a change of preview size is not handed back)
+                        Log.e(TAG, "ERROR: unexpected frame size " + data.length);
+                        return;
+                    }
+                    if (!mEngine.takeFrame()) {
+                        // skipped (rate control processes only every n-th frame)
+                    }
+                    else if (mEngine.mProfile.workerThread) {
+                        // Pass YUV image data to the worker (dropped if it is still busy)
+                        if (mEngine.submit(data, tArrival)) mEngine.mTimer.record(StageTimer.COPY, System.nanoTime() - tArrival);
+                        else mEngine.frameDropped();
+                    }
+                    else if (mEngine.mBusy) mEngine.frameDropped();
+                    else {
+                        // Pass YUV image data to draw-on-top companion
+                        if (mEngine.mPending) mEngine.frameDropped();   // the last one was never drawn
+                        mEngine.mPending = true;
+                        System.arraycopy(data, 0, mEngine.mYUVData, 0, data.length);
+                        mEngine.mTimer.record(StageTimer.COPY, System.nanoTime() - tArrival);
+                        mDrawOnTop.mFrameArrivalNanos = tArrival;
+                        mDrawOnTop.invalidate();
+                    }
+                    camera.addCallbackBuffer(data);     // hand the buffer back for another frame
                 }
             };
 
             try {
                 mCamera.setPreviewDisplay(holder);
-                // Preview callback will be used whenever new viewfinder frame is available
-                mCamera.setPreviewCallback(mPreviewCallback);
+                // Preview callback will be used whenever new viewfinder frame is available,
+                // with the engine's buffers (no allocation per frame)
+                mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
             }
             catch (IOException e) {
                 Log.e(TAG, "ERROR: surfaceCreated - IOException " + e);
@@ -756,7 +694,8 @@ public class MainActivity extends Activity
 			Camera.Parameters parameters = mCamera.getParameters();
 			parameters.setPreviewSize(mCameraWidth, mCameraHeight);
 			// check whether following is within PreviewFpsRange ?
-            parameters.setPreviewFrameRate(15);	// deprecated
+            mCameraProfile = mEngine.mProfile;
+            parameters.setPreviewFrameRate(mCameraProfile.frameRate);	// deprecated
 			// parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO); 
             try {
                 mCamera.setParameters(parameters);
@@ -764,30 +703,52 @@ public class MainActivity extends Activity
                 Log.e(TAG, "ERROR: setParameters exception " + e);
                 System.exit(0);
             }
+            setupArrays(mCamera);	// only allocates on the first start (or if the preview size changed)
+            if (!mBuffersQueued) {	// once per camera (surfaceChanged can come more than once)
+                for (byte[] buffer : mEngine.mCallbackBuffers) mCamera.addCallbackBuffer(buffer);
+                mBuffersQueued = true;
+            }
             mCamera.startPreview();
         }
 
-		private void setupArrays (byte[] data, Camera camera)
+        void updateCamera (EstimatorProfile old, EstimatorProfile profile)
+        { // camera side of a profile change: restart the preview only for a new preview size
+            String TAG="updateCamera";
+            if (profile.previewPixels != old.previewPixels) {
+                getPreviewSize(mCamera, profile.previewPixels);
+                if (mCameraWidth != mEngine.mImageWidth || mCameraHeight != mEngine.mImageHeight) {
+                    if (DBG) Log.i(TAG, "Restarting preview at " + mCameraHeight + " x " + mCameraWidth);
+                    mCamera.stopPreview();
+                    mCamera.setPreviewCallbackWithBuffer(null);	// clears the queue of old-size buffers
+                    mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+                    mBuffersQueued = false;
+                    surfaceChanged(mHolder, 0, mCameraWidth, mCameraHeight);
+                    return;
+                }
+            }
+            if (profile.frameRate != old.frameRate) {	// on the running preview
+                Camera.Parameters parameters = mCamera.getParameters();
+                parameters.setPreviewFrameRate(profile.frameRate);	// deprecated
+                try {
+                    mCamera.setParameters(parameters);
+                } catch (Exception e) {
+                    Log.e(TAG, "ERROR: cannot change the frame rate to " + profile.frameRate + " " + e);
+                }
+            }
+        }
+
+		private void setupArrays (Camera camera)
 		{
 			String TAG="setupArrays";
-			if (DBG) Log.i(TAG, "Setting up arrays");
-//            mDrawOnTop.frame += 1;
-//            mDrawOnTop.prevBrightness = mDrawOnTop.brightness;
-//            mDrawOnTop.brightness = new float[mDrawOnTop.mImageWidth * mDrawOnTop.mImageHeight];
-
 			Camera.Parameters params = camera.getParameters();
-			mDrawOnTop.mImageHeight = params.getPreviewSize().height;
-			mDrawOnTop.mImageWidth = params.getPreviewSize().width;
-			if (DBG) Log.i(TAG, "height " + mDrawOnTop.mImageHeight + " width " + mDrawOnTop.mImageWidth);
-			mDrawOnTop.mBitmap = Bitmap.createBitmap(mDrawOnTop.mImageWidth,
-				mDrawOnTop.mImageHeight, Bitmap.Config.RGB_565);
-			mDrawOnTop.mRGBData = new int[mDrawOnTop.mImageWidth * mDrawOnTop.mImageHeight];
-            mDrawOnTop.deltaBrightness = new float[mDrawOnTop.mImageWidth * mDrawOnTop.mImageHeight];
-			if (DBG) Log.i(TAG, "data length " + data.length); // should be width*height*3/2 for YUV format
-			mDrawOnTop.mYUVData = new byte[data.length];
-			int dataLengthExpected = mDrawOnTop.mImageWidth * mDrawOnTop.mImageHeight * 3 / 2;
-			if (data.length != dataLengthExpected)
-				Log.e(TAG, "ERROR: data length mismatch "+data.length+" vs "+dataLengthExpected);
+			int height = params.getPreviewSize().height;
+			int width = params.getPreviewSize().width;
+			int dataLength = width * height * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
+			if (DBG) Log.i(TAG, "height " + height + " width " + width + " data length " + dataLength);
+			if (mEngine.allocate(width, height, dataLength)) {
+				if (DBG) Log.i(TAG, "Set up arrays");
+			}
+			else if (DBG) Log.i(TAG, "Reusing arrays");
 		}
 
     }
@@ -0,0 +1,68 @@
+// JMH benchmarks of the estimator on a plain JVM (./gradlew :core:jmh).
+// Frames are the looming synthetic texture (LayoutBenchmark.syntheticFrame) at preview size, a
+// short sequence played forwards and backwards so the temporal stencil always sees motion.
+// Whole frames per pipeline and option; StageBenchmark has the stages on their own.
+
+package com.example.viewfinder;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark
+{
+	static final int WIDTH = 640, HEIGHT = 480;
+	static final int SEQUENCE = 16;		// frames cycled through
+
+	@Param({ "float", "fixed" })
+	public String pipeline;
+
+	@Param({ "full", "incremental", "tracking" })
+	public String mode;
+
+	byte[][] mFrames;
+	int mNext;
+	TTCEstimator mEstimator;
+
+	@Setup(Level.Trial)
+	public void setUp ()
+	{
+		mFrames = new byte[SEQUENCE][];
+		for (int t = 0; t < SEQUENCE; t++) mFrames[t] = LayoutBenchmark.syntheticFrame(WIDTH, HEIGHT, 1 + 0.01 * t);
+		mEstimator = new TTCEstimator(WIDTH, HEIGHT);
+		mEstimator.setFixedPoint(pipeline.equals("fixed"));
+		mEstimator.setIncremental(mode.equals("incremental"));
+		mEstimator.setFoeTracking(mode.equals("tracking"));
+		for (int t = 0; t < 2 * SEQUENCE; t++) mEstimator.processFrame(nextFrame());	// history, FOE lock
+	}
+
+	byte[] nextFrame ()
+	{ // 0, 1, .. SEQUENCE - 1, SEQUENCE - 2, .. 1, 0, 1, ..
+		int t = mNext < SEQUENCE ? mNext : 2 * SEQUENCE - 2 - mNext;
+		mNext = (mNext + 1) % (2 * SEQUENCE - 2);
+		return mFrames[t];
+	}
+
+	@Benchmark
+	public TTCResult processFrame ()
+	{ // the whole pipeline: decode, block sums, stencil, accumulators, solve
+		return mEstimator.processFrame(nextFrame());
+	}
+}
@@ -0,0 +1,89 @@
+// JMH benchmarks of single pipeline stages (./gradlew :core:jmh -PjmhInclude=StageBenchmark),
+// on the same synthetic frames as PipelineBenchmark.
+
+package com.example.viewfinder;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StageBenchmark
+{
+	static final int WIDTH = PipelineBenchmark.WIDTH, HEIGHT = PipelineBenchmark.HEIGHT;
+
+	byte[] mFrame;
+	byte[] mLuma;
+	float[] mBrightness;
+	LumaStats mStats;
+	int[] mBlockL, mBlockX, mBlockY;
+	TTCEstimator mEstimator;
+	TTCSums mSums;
+	TTCResult mResult;
+	ModelSelector mSelector;
+
+	@Setup(Level.Trial)
+	public void setUp ()
+	{
+		mFrame = LayoutBenchmark.syntheticFrame(WIDTH, HEIGHT, 1.05);
+		mLuma = new byte[WIDTH * HEIGHT];
+		mBrightness = new float[WIDTH * HEIGHT];
+		mStats = new LumaStats();
+		int nBlocks = (WIDTH / TTCEstimator.BLOCK) * (HEIGHT / TTCEstimator.BLOCK);
+		mBlockL = new int[nBlocks];
+		mBlockX = new int[nBlocks];
+		mBlockY = new int[nBlocks];
+		// an estimator that has seen a few frames, for its scratch rows and its sums
+		mEstimator = new TTCEstimator(WIDTH, HEIGHT);
+		mEstimator.setFixedPoint(true);
+		for (int t = 0; t < 4; t++) mEstimator.processFrame(LayoutBenchmark.syntheticFrame(WIDTH, HEIGHT, 1 + 0.01 * t));
+		TTCEstimator.decodeLuma(mLuma, mFrame, WIDTH * HEIGHT, mStats);
+		mSums = new TTCSums();
+		mSums.set(mEstimator.getSums());
+		mResult = new TTCResult();
+		mSelector = new ModelSelector();
+	}
+
+	@Benchmark
+	public LumaStats decodeLuma ()
+	{ // fixed point pipeline: bytes and the luma statistics
+		TTCEstimator.decodeLuma(mLuma, mFrame, WIDTH * HEIGHT, mStats);
+		return mStats;
+	}
+
+	@Benchmark
+	public LumaStats decodeBrightness ()
+	{ // float pipeline: brightness 0..1 and the luma statistics
+		TTCEstimator.decodeBrightness(mBrightness, mFrame, WIDTH * HEIGHT, mStats);
+		return mStats;
+	}
+
+	@Benchmark
+	public int[] blockSums ()
+	{ // 4x4 block sums of luma, E_x and E_y straight from the luma bytes
+		mEstimator.blockSums(mLuma, mBlockL, mBlockX, mBlockY, mEstimator.mFull);
+		return mBlockL;
+	}
+
+	@Benchmark
+	public TTCResult solve ()
+	{ // model selection and the closed-form solves on one frame's sums
+		mSelector.solve(mSums, mResult);
+		return mResult;
+	}
+}
@@ -0,0 +1,302 @@
+// Offline (batch) processing of recorded or synthetic frame sequences on all cores.
+// The estimator only remembers the last few frames (the temporal stencil), so a sequence is
+// cut into chunks that each start with taps - 1 warm-up frames borrowed from the chunk before.
+// Chunks run in parallel on a fork-join pool and every frame's result lands at its own index,
+// so the merged output is in frame order and identical to a sequential run.
+// Uses java.util.concurrent.ForkJoinPool (Android API 21+), meant for a desktop JVM through main().
+
+package com.example.viewfinder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class BatchProcessor
+{
+	// A sequence of NV21 frames. read() is called from several threads at once.
+	public interface FrameSource
+	{
+		int frameCount ();
+		void read (int index, byte[] yuv420sp) throws IOException;
+	}
+
+	final int mWidth, mHeight;
+	int mChunkSize = 256;			// frames per chunk (not counting the warm-up frames)
+	int mParallelism = Runtime.getRuntime().availableProcessors();
+	boolean mFixedPoint = false;
+	int mTaps = 3;
+	boolean mBlend = true;
+
+	public BatchProcessor (int width, int height)
+	{
+		mWidth = width;
+		mHeight = height;
+	}
+
+	public void setChunkSize (int frames)
+	{
+		mChunkSize = Math.max(1, frames);
+	}
+
+	public void setParallelism (int threads)
+	{
+		mParallelism = Math.max(1, threads);
+	}
+
+	public void setFixedPoint (boolean fixedPoint)
+	{
+		mFixedPoint = fixedPoint;
+	}
+
+	public void setTemporalTaps (int taps)
+	{
+		mTaps = taps;
+	}
+
+	public void setBlend (boolean blend)
+	{
+		mBlend = blend;
+	}
+
+	TTCEstimator newEstimator ()
+	{ // a fresh estimator per chunk, configured like the batch
+		TTCEstimator estimator = new TTCEstimator(mWidth, mHeight);
+		estimator.setFixedPoint(mFixedPoint);
+		estimator.setTemporalTaps(mTaps);
+		estimator.getSelector().setBlend(mBlend);
+		return estimator;
+	}
+
+	public Report process (FrameSource source, TTCResult[] results) throws IOException
+	{ // fills results[i] (allocated if null) for every frame of the source
+		final int nFrames = source.frameCount();
+		if (results.length < nFrames) throw new IllegalArgumentException("results too short");
+		Report report = new Report();
+		report.frames = nFrames;
+		report.threads = mParallelism;
+		long tStart = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(mParallelism);
+		try {
+			pool.invoke(new ChunkTask(source, results, report, 0, nFrames));
+		} catch (ChunkFailure e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+		report.wallNanos = System.nanoTime() - tStart;
+		return report;
+	}
+
+	// unchecked wrapper so an IOException can cross the fork-join boundary
+	static class ChunkFailure extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		ChunkFailure (IOException cause)
+		{
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause ()
+		{
+			return (IOException) super.getCause();
+		}
+	}
+
+	class ChunkTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final FrameSource mSource;
+		final TTCResult[] mResults;
+		final Report mReport;
+		final int mFrom, mTo;		// frames [mFrom, mTo) are published by this task
+
+		ChunkTask (FrameSource source, TTCResult[] results, Report report, int from, int to)
+		{
+			mSource = source;
+			mResults = results;
+			mReport = report;
+			mFrom = from;
+			mTo = to;
+		}
+
+		@Override
+		protected void compute ()
+		{
+			int n = mTo - mFrom;
+			if (n <= mChunkSize) {
+				try {
+					processChunk();
+				} catch (IOException e) {
+					throw new ChunkFailure(e);
+				}
+				return;
+			}
+			// split on a chunk boundary so chunks do not depend on how the range was divided
+			int mid = mFrom + (n / mChunkSize + 1) / 2 * mChunkSize;
+			invokeAll(new ChunkTask(mSource, mResults, mReport, mFrom, mid),
+					new ChunkTask(mSource, mResults, mReport, mid, mTo));
+		}
+
+		void processChunk () throws IOException
+		{
+			long tStart = System.nanoTime();
+			TTCEstimator estimator = newEstimator();
+			StageTimer timer = new StageTimer();
+			estimator.setTimer(timer);
+			byte[] yuv = new byte[mWidth * mHeight * 3 / 2];
+			int warmUp = Math.min(mFrom, mTaps - 1);	// frames that only fill the temporal history
+			for (int i = mFrom - warmUp; i < mTo; i++) {
+				mSource.read(i, yuv);
+				TTCResult r = estimator.processFrame(yuv);
+				if (i < mFrom) continue;
+				if (mResults[i] == null) mResults[i] = new TTCResult();
+				mResults[i].set(r);
+			}
+			mReport.addChunk(warmUp, timer, System.nanoTime() - tStart);
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	public static class Report
+	{
+		public int frames, chunks, warmUpFrames, threads;
+		public long wallNanos;		// whole batch, start to finish
+		public long busyNanos;		// summed over chunks (what one core would have taken)
+		public final StageTimer timer = new StageTimer();	// per-stage spans of all chunks
+
+		synchronized void addChunk (int warmUp, StageTimer chunkTimer, long nanos)
+		{
+			chunks++;
+			warmUpFrames += warmUp;
+			timer.add(chunkTimer);
+			busyNanos += nanos;
+		}
+
+		public double framesPerSecond ()
+		{
+			return frames / (wallNanos / 1e9);
+		}
+
+		public double speedUp ()
+		{
+			return (double) busyNanos / wallNanos;
+		}
+
+		@Override
+		public String toString ()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format(Locale.US, "%d frames in %d chunks (%d warm-up frames), %d threads\n",
+					frames, chunks, warmUpFrames, threads));
+			sb.append(String.format(Locale.US, "wall %.1f ms, %.1f frames/s, %.3f ms/frame per core, speed-up x%.2f (%.0f%% of %d threads)\n",
+					wallNanos / 1e6, framesPerSecond(), busyNanos / 1e6 / frames, speedUp(),
+					100 * speedUp() / threads, threads));
+			for (int s = StageTimer.LUMA; s <= StageTimer.SOLVE; s++) {
+				sb.append(String.format(Locale.US, "  %-10s p50 %7.3f ms  p99 %7.3f ms\n", StageTimer.NAMES[s],
+						timer.percentileMicros(s, 50) / 1000.0, timer.percentileMicros(s, 99) / 1000.0));
+			}
+			return sb.toString();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	public static class RawFileSource implements FrameSource
+	{ // recorded preview frames, stored back to back as raw NV21
+		final FileChannel mChannel;
+		final int mFrameBytes;
+		final int mFrames;
+
+		public RawFileSource (File file, int width, int height) throws IOException
+		{
+			mChannel = new RandomAccessFile(file, "r").getChannel();
+			mFrameBytes = width * height * 3 / 2;
+			mFrames = (int) (mChannel.size() / mFrameBytes);
+		}
+
+		public int frameCount ()
+		{
+			return mFrames;
+		}
+
+		public void read (int index, byte[] yuv420sp) throws IOException
+		{ // positional reads, safe from several threads
+			ByteBuffer buffer = ByteBuffer.wrap(yuv420sp, 0, mFrameBytes);
+			long position = (long) index * mFrameBytes;
+			while (buffer.hasRemaining()) {
+				int n = mChannel.read(buffer, position + buffer.position());
+				if (n < 0) throw new IOException("short frame " + index);
+			}
+		}
+
+		public void close () throws IOException
+		{
+			mChannel.close();
+		}
+	}
+
+	public static class SyntheticSource implements FrameSource
+	{ // looming texture (LayoutBenchmark.syntheticFrame) approaching at a constant rate
+		final int mWidth, mHeight, mFrames;
+		final double mRate;		// relative growth per frame
+
+		public SyntheticSource (int width, int height, int frames, double rate)
+		{
+			mWidth = width;
+			mHeight = height;
+			mFrames = frames;
+			mRate = rate;
+		}
+
+		public int frameCount ()
+		{
+			return mFrames;
+		}
+
+		public double timeToContact (double t)
+		{ // true TTC (in frames) at time t, for scale 1 + rate t
+			return (1 + mRate * t) / mRate;
+		}
+
+		public void read (int index, byte[] yuv420sp)
+		{
+			byte[] frame = LayoutBenchmark.syntheticFrame(mWidth, mHeight, 1 + mRate * index);
+			System.arraycopy(frame, 0, yuv420sp, 0, frame.length);
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	public static void main (String[] args) throws IOException
+	{ // BatchProcessor [file.nv21 width height] -- without arguments runs a synthetic sequence
+		FrameSource source;
+		RawFileSource file = null;
+		int width = 640, height = 480;
+		if (args.length >= 3) {
+			width = Integer.parseInt(args[1]);
+			height = Integer.parseInt(args[2]);
+			source = file = new RawFileSource(new File(args[0]), width, height);
+		} else {
+			source = new SyntheticSource(width, height, 400, 0.002);
+		}
+		try {
+			BatchProcessor batch = new BatchProcessor(width, height);
+			TTCResult[] results = new TTCResult[source.frameCount()];
+			batch.setParallelism(1);
+			System.out.print("sequential: " + batch.process(source, results));
+			batch.setParallelism(Runtime.getRuntime().availableProcessors());
+			System.out.print("parallel:   " + batch.process(source, results));
+		} finally {
+			if (file != null) file.close();
+		}
+	}
+}
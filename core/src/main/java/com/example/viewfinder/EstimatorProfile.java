@@ -0,0 +1,77 @@
+// Bundle of the settings that trade TTC accuracy against latency, battery and heat.
+// A profile fixes the camera side (preview resolution and frame rate) and the estimator side
+// (subsample factor, float or fixed point), where the processing runs and how much is logged.
+// Switching profiles at runtime only restarts the preview if the resolution changes; a new
+// frame rate is set on the running camera, and a new subsample factor replaces the estimator
+// (its grid depends on it) but keeps the frame buffers.
+
+package com.example.viewfinder;
+
+public class EstimatorProfile
+{
+	// logging levels
+	public static final int LOG_ERRORS = 0;	// only errors
+	public static final int LOG_EVENTS = 1;	// setup, profile changes, exposure changes
+	public static final int LOG_FRAMES = 2;	// and per-frame TTC / E_t logs (the TTC1..3 series)
+
+	public static final EstimatorProfile LATENCY =
+			new EstimatorProfile("latency", 320 * 240, 30, 4, true, true, LOG_ERRORS);
+	public static final EstimatorProfile BALANCED =
+			new EstimatorProfile("balanced", 640 * 480, 15, 8, true, true, LOG_EVENTS);
+	public static final EstimatorProfile ACCURACY =	// the original settings
+			new EstimatorProfile("accuracy", 640 * 480, 15, 4, false, false, LOG_FRAMES);
+
+	public final String name;
+	public final int previewPixels;		// approx number of pixels wanted in the preview
+	public final int frameRate;			// preview frames per second
+	public final int block;				// subsample factor (TTCEstimator block size)
+	public final boolean fixedPoint;	// integer pipeline instead of float
+	public final boolean workerThread;	// process on a worker thread (dropping frames while it is busy)
+										// rather than in onDraw on the UI thread
+	public final int logLevel;			// LOG_ERRORS, LOG_EVENTS or LOG_FRAMES
+
+	public EstimatorProfile (String name, int previewPixels, int frameRate, int block,
+							 boolean fixedPoint, boolean workerThread, int logLevel)
+	{
+		if (block != 2 && block != 4 && block != 8) throw new IllegalArgumentException("block " + block);
+		if (frameRate <= 0) throw new IllegalArgumentException("frame rate " + frameRate);
+		this.name = name;
+		this.previewPixels = previewPixels;
+		this.frameRate = frameRate;
+		this.block = block;
+		this.fixedPoint = fixedPoint;
+		this.workerThread = workerThread;
+		this.logLevel = logLevel;
+	}
+
+	public EstimatorProfile with (int previewPixels, int block)
+	{ // same profile at another resolution / subsample factor (see RateController)
+		return new EstimatorProfile(name, previewPixels, frameRate, block, fixedPoint, workerThread, logLevel);
+	}
+
+	public double ttcScale (int interval)
+	{ // factor from an estimator TTC (in processed frames and blocks of this size) to the one
+	  // shown: camera frames of the accuracy profile (15 fps) in 4x4 blocks, the original unit,
+	  // whatever the block size, frame rate or rate control interval (frames processed per frame)
+		return (double) block / TTCEstimator.BLOCK * interval * ACCURACY.frameRate / frameRate;
+	}
+
+	public boolean logs (int level)
+	{
+		return logLevel >= level;
+	}
+
+	public boolean needsNewEstimator (TTCEstimator estimator, int width, int height)
+	{ // the estimator's grid is fixed by the image size and block size
+		return estimator == null || estimator.getBlock() != block
+				|| estimator.getWidth() != width || estimator.getHeight() != height;
+	}
+
+	@Override
+	public String toString ()
+	{
+		return name + ": ~" + previewPixels + " pixels at " + frameRate + " fps, " + block + "x" + block + " blocks, "
+				+ (fixedPoint ? "fixed point" : "float") + (workerThread ? ", worker thread" : ", UI thread")
+				+ ", log level " + logLevel;
+	}
+}
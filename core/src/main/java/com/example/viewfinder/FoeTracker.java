@@ -0,0 +1,251 @@
+// Tracks the focus of expansion (FOE) from frame to frame and picks the part of the
+// subsampled grid the estimator processes.
+// The coordinate system is centered on the filtered FOE of the previous frames, where the
+// pure approach model (case 1) holds exactly, and only a window around it is decoded, reduced
+// to blocks and summed. The window size follows how much the FOE jitters: a steady FOE
+// shrinks it to mMinHalf blocks each side, a jumpy or lost one grows it up to the full grid.
+// To catch an FOE that left the window, every mReacquirePeriod frames (and after losing it)
+// the full grid is processed again for a few frames. A periodic re-acquisition only replaces
+// the tracked FOE if the full grid fits the motion at least as well as the window does: with
+// an approaching object in front of a background at another depth, it does not.
+// All positions are in blocks on the subsampled grid: row (x) and column (y).
+
+package com.example.viewfinder;
+
+public class FoeTracker
+{
+	// a rectangle of blocks: rows [rowFrom, rowTo) and columns [colFrom, colTo)
+	public static class Window
+	{
+		public int rowFrom, rowTo, colFrom, colTo;
+
+		public void set (int r0, int r1, int c0, int c1)
+		{
+			rowFrom = r0;
+			rowTo = r1;
+			colFrom = c0;
+			colTo = c1;
+		}
+
+		public void set (Window w)
+		{
+			set(w.rowFrom, w.rowTo, w.colFrom, w.colTo);
+		}
+
+		public void intersect (Window w)
+		{
+			rowFrom = Math.max(rowFrom, w.rowFrom);
+			rowTo = Math.max(rowFrom, Math.min(rowTo, w.rowTo));
+			colFrom = Math.max(colFrom, w.colFrom);
+			colTo = Math.max(colFrom, Math.min(colTo, w.colTo));
+		}
+
+		public int rows ()
+		{
+			return rowTo - rowFrom;
+		}
+
+		public int cols ()
+		{
+			return colTo - colFrom;
+		}
+
+		public int blocks ()
+		{
+			return rows() * cols();
+		}
+
+		public boolean contains (double row, double col)
+		{
+			return row >= rowFrom && row < rowTo && col >= colFrom && col < colTo;
+		}
+	}
+
+	final int mSubRows, mSubCols;
+	int mMinHalf = 12;				// smallest window: 2 mMinHalf blocks on a side (enough texture to solve)
+	float mJitterScale = 4;			// window half size grows by this many blocks per block of FOE jitter
+	float mSmoothing = 0.3f;		// weight of a new FOE measurement
+	int mReacquirePeriod = 60;		// frames between full grid re-acquisitions
+	int mLostLimit = 3;				// frames without a usable FOE before re-acquiring
+
+	double mRow, mCol;				// filtered FOE
+	double mJitter;					// smoothed distance between measured and filtered FOE
+	double mConfidence;				// smoothed confidence of the results the FOE was taken from
+	boolean mForced;				// this re-acquisition has to be taken (start, or FOE lost)
+	int mHalfRows, mHalfCols;		// half size of the current window
+	int mCenterRow, mCenterCol;		// center of the current window
+	int mFullFrames;				// full grid frames still to go in this re-acquisition
+	int mSinceFull;					// frames since the last full grid frame
+	int mLost;						// frames in a row without a usable FOE
+	int mReacquisitions;
+
+	final Window mWindow = new Window();	// processed this frame
+	final Window mValid = new Window();		// processed in all frames of the temporal stencil
+	final Window[] mHistory;				// windows of the last few frames (ring)
+	int mHistoryHead, mHistoryCount;
+
+	public FoeTracker (int subRows, int subCols)
+	{
+		mSubRows = subRows;
+		mSubCols = subCols;
+		mHistory = new Window[5];			// the widest temporal stencil
+		for (int i = 0; i < mHistory.length; i++) mHistory[i] = new Window();
+		reset();
+	}
+
+	public void setMinHalfSize (int blocks)
+	{
+		mMinHalf = Math.max(2, blocks);
+	}
+
+	public void setReacquirePeriod (int frames)
+	{
+		mReacquirePeriod = Math.max(1, frames);
+	}
+
+	public void setSmoothing (float smoothing)
+	{
+		mSmoothing = smoothing;
+	}
+
+	public void reset ()
+	{ // forget the FOE: start over from the center with a full grid re-acquisition
+		mRow = mSubRows / 2;
+		mCol = mSubCols / 2;
+		mJitter = Math.max(mSubRows, mSubCols);
+		mConfidence = 0;
+		mLost = 0;
+		mFullFrames = 0;
+		mSinceFull = mReacquirePeriod;
+		restart();
+	}
+
+	public void restart ()
+	{ // the frame history was dropped (see TTCEstimator.restart), the windows go with it
+		mHistoryCount = 0;
+	}
+
+	public double foeRow ()
+	{
+		return mRow;
+	}
+
+	public double foeCol ()
+	{
+		return mCol;
+	}
+
+	public int originRow ()
+	{
+		return clamp((int) Math.round(mRow), 0, mSubRows - 1);
+	}
+
+	public int originCol ()
+	{
+		return clamp((int) Math.round(mCol), 0, mSubCols - 1);
+	}
+
+	public Window window ()
+	{
+		return mWindow;
+	}
+
+	public Window validWindow ()
+	{
+		return mValid;
+	}
+
+	public boolean isReacquiring ()
+	{
+		return mFullFrames > 0;
+	}
+
+	public int reacquisitions ()
+	{
+		return mReacquisitions;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	public void begin (int taps)
+	{ // choose this frame's window; taps frames have to be processed before a block has an E_t
+		if (mFullFrames == 0 && (mSinceFull >= mReacquirePeriod || mLost >= mLostLimit)) {
+			mFullFrames = taps;		// long enough for every block to get a full stencil
+			mForced = mLost >= mLostLimit || mConfidence == 0;
+			mLost = 0;
+			mReacquisitions++;
+		}
+		if (mFullFrames > 0) {
+			mWindow.set(0, mSubRows, 0, mSubCols);
+			mFullFrames--;
+			mSinceFull = 0;
+		} else {
+			placeWindow();
+			mSinceFull++;
+		}
+
+		mHistoryHead = (mHistoryHead + 1) % mHistory.length;
+		mHistory[mHistoryHead].set(mWindow);
+		mHistoryCount = Math.min(mHistoryCount + 1, mHistory.length);
+		// only blocks processed in every frame of the stencil have a valid E_t
+		// (right after a restart the stencil repeats the first frame, see TemporalStencil)
+		mValid.set(mWindow);
+		int n = Math.min(taps, mHistoryCount);
+		for (int age = 1; age < n; age++) mValid.intersect(mHistory[(mHistoryHead - age + mHistory.length) % mHistory.length]);
+	}
+
+	private void placeWindow ()
+	{ // the window only moves (or resizes) once the FOE got far enough from its center,
+	  // so most frames keep the same window and the stencil history stays valid
+		int half = Math.max(mMinHalf, (int) Math.ceil(mMinHalf + mJitterScale * mJitter));
+		int halfRows = Math.min(half, (mSubRows + 1) / 2);
+		int halfCols = Math.min(half, (mSubCols + 1) / 2);
+		int row = originRow(), col = originCol();
+		boolean resize = halfRows > mHalfRows || halfCols > mHalfCols
+				|| 4 * halfRows < 3 * mHalfRows || 4 * halfCols < 3 * mHalfCols;
+		boolean move = Math.abs(row - mCenterRow) * 4 > mHalfRows || Math.abs(col - mCenterCol) * 4 > mHalfCols;
+		if (resize || move || mWindow.blocks() == mSubRows * mSubCols) {
+			mHalfRows = halfRows;
+			mHalfCols = halfCols;
+			mCenterRow = row;
+			mCenterCol = col;
+		}
+		// keep the whole window on the grid (shifted inwards at the borders)
+		int r0 = clamp(mCenterRow - mHalfRows, 0, mSubRows - 2 * mHalfRows);
+		int c0 = clamp(mCenterCol - mHalfCols, 0, mSubCols - 2 * mHalfCols);
+		mWindow.set(Math.max(r0, 0), Math.min(r0 + 2 * mHalfRows, mSubRows),
+				Math.max(c0, 0), Math.min(c0 + 2 * mHalfCols, mSubCols));
+	}
+
+	public void update (TTCResult r, int originRow, int originCol)
+	{ // feed back this frame's result (FOE relative to the origin the sums were taken at)
+		if (Float.isNaN(r.ttc) || r.confidence <= 0) {
+			mLost++;
+			return;
+		}
+		if (mValid.blocks() == mSubRows * mSubCols && !mForced && r.confidence < mConfidence)
+			return;			// the full grid explains the motion worse than the window: keep tracking
+		mConfidence += mSmoothing * (r.confidence - mConfidence);
+		if (Float.isNaN(r.x_0) || Float.isNaN(r.y_0)) {
+			// the approach model alone explained E_t, so the origin already is a good FOE
+			mLost = 0;
+			mJitter *= 1 - mSmoothing;
+			return;
+		}
+		double row = originRow + r.x_0, col = originCol + r.y_0;
+		if (!(row >= 0 && row < mSubRows && col >= 0 && col < mSubCols)) {
+			mLost++;		// FOE off the grid (or a degenerate solve): not something to track
+			return;
+		}
+		mLost = 0;
+		double dRow = row - mRow, dCol = col - mCol;
+		mRow += mSmoothing * dRow;
+		mCol += mSmoothing * dCol;
+		mJitter += mSmoothing * (Math.sqrt(dRow * dRow + dCol * dCol) - mJitter);
+	}
+
+	static int clamp (int v, int lo, int hi)
+	{
+		return Math.max(lo, Math.min(hi, v));
+	}
+}
@@ -0,0 +1,196 @@
+// Running version of the least-squares sums.
+// Each block's contribution from the frame it was last accumulated is kept, and only blocks
+// that changed meaningfully are re-accumulated: their old contribution is subtracted and the
+// new one added. A block changed if its block-level E_t is above a threshold (now, or when it
+// was last stored), or if its E_x or E_y moved by more than the threshold since it was stored
+// (the signed E_t of a block can cancel out while texture moves across it).
+// On mostly static scenes this touches only the blocks covered by moving objects.
+// A full rebuild every mRefreshInterval frames refreshes slowly drifting gradients
+// (and in the float version any round-off that builds up from add / subtract).
+
+package com.example.viewfinder;
+
+public class IncrementalSums
+{
+	static final int N = TTCSums.NTERMS;
+
+	final int mBlocks;
+	final int mUnit;				// fixed point unit of the block values (TTCEstimator.mUnit)
+	float mThreshold = 1.0f / 255;	// change in block values (brightness 0..1) below which a block counts as unchanged
+	int mRefreshInterval = 30;		// frames between full rebuilds
+	int mFramesSinceRefresh;
+	boolean mValid = false;			// stored contributions match the current origin
+	int mOriginX, mOriginY;			// origin the contributions were computed for
+	int mUpdatedBlocks;				// blocks re-accumulated in the last frame
+
+	// float pipeline
+	final double[] mSums = new double[N];
+	float[] mContrib;				// N per block
+	float[] mStoredX, mStoredY, mStoredT;	// block values each stored contribution was computed with
+
+	// fixed point pipeline (exact, the add / subtract never loses anything)
+	final long[] mSumsFixed = new long[N];
+	long[] mContribFixed;
+	int[] mStoredXFixed, mStoredYFixed, mStoredTFixed;
+
+	public IncrementalSums (int nBlocks)
+	{
+		this(nBlocks, TTCEstimator.S_UNIT);
+	}
+
+	public IncrementalSums (int nBlocks, int unit)
+	{
+		mBlocks = nBlocks;
+		mUnit = unit;
+	}
+
+	public void setThreshold (float threshold)
+	{
+		mThreshold = threshold;
+	}
+
+	public void setRefreshInterval (int frames)
+	{
+		mRefreshInterval = frames;
+	}
+
+	public void invalidate ()
+	{ // next update is a full rebuild
+		mValid = false;
+	}
+
+	public int updatedBlocks ()
+	{
+		return mUpdatedBlocks;
+	}
+
+	private boolean startFrame (int xOffset, int yOffset)
+	{ // returns true if this frame has to be a full rebuild
+		boolean full = !mValid || xOffset != mOriginX || yOffset != mOriginY
+				|| ++mFramesSinceRefresh >= mRefreshInterval;
+		if (full) {
+			mFramesSinceRefresh = 0;
+			mOriginX = xOffset;
+			mOriginY = yOffset;
+			mValid = true;
+		}
+		mUpdatedBlocks = 0;
+		return full;
+	}
+
+	public void update (float[] subE_x, float[] subE_y, float[] subE_t, int subCols,
+						int x_offset, int y_offset, TTCSums out)
+	{ // float pipeline: subsampled E_x, E_y, E_t on a flat grid with subCols columns
+		if (mContrib == null) {
+			mContrib = new float[mBlocks * N];
+			mStoredX = new float[mBlocks];
+			mStoredY = new float[mBlocks];
+			mStoredT = new float[mBlocks];
+		}
+		final boolean full = startFrame(x_offset, y_offset);
+		final double[] sums = mSums;
+		final float[] contrib = mContrib;
+		final float threshold = mThreshold;
+		if (full) {
+			for (int i = 0; i < N; i++) sums[i] = 0;
+		}
+		int updated = 0;
+		for (int k = 0; k < mBlocks; k++) {
+			final float ex = subE_x[k], ey = subE_y[k], et = subE_t[k];
+			if (!full && Math.abs(et) <= threshold && Math.abs(mStoredT[k]) <= threshold
+					&& Math.abs(ex - mStoredX[k]) <= threshold && Math.abs(ey - mStoredY[k]) <= threshold)
+				continue;
+			final float x = k / subCols - x_offset;
+			final float y = k % subCols - y_offset;
+			final float G = x * ex + y * ey;
+			final float GG = G * G;
+			final int o = k * N;
+			if (!full) {
+				for (int i = 0; i < N; i++) sums[i] -= contrib[o + i];
+			}
+			contrib[o] = GG;
+			contrib[o + 1] = ex * ey;
+			contrib[o + 2] = G * ex;
+			contrib[o + 3] = G * ey;
+			contrib[o + 4] = G * et;
+			contrib[o + 5] = ex * ex;
+			contrib[o + 6] = ey * ey;
+			contrib[o + 7] = ey * et;
+			contrib[o + 8] = ex * et;
+			contrib[o + 9] = GG * x * y;
+			contrib[o + 10] = G * x * et;
+			contrib[o + 11] = G * y * et;
+			contrib[o + 12] = GG * x;
+			contrib[o + 13] = GG * y;
+			contrib[o + 14] = GG * x * x;
+			contrib[o + 15] = GG * y * y;
+			contrib[o + 16] = et * et;
+			for (int i = 0; i < N; i++) sums[i] += contrib[o + i];
+			mStoredX[k] = ex;
+			mStoredY[k] = ey;
+			mStoredT[k] = et;
+			updated++;
+		}
+		mUpdatedBlocks = updated;
+		out.set(sums);
+	}
+
+	public void updateFixedPoint (int[] subX, int[] subY, int[] subT, int subCols,
+								  int x_offset, int y_offset, TTCSums out)
+	{ // fixed point pipeline: block values in units of 1 / mUnit
+		if (mContribFixed == null) {
+			mContribFixed = new long[mBlocks * N];
+			mStoredXFixed = new int[mBlocks];
+			mStoredYFixed = new int[mBlocks];
+			mStoredTFixed = new int[mBlocks];
+		}
+		final boolean full = startFrame(x_offset, y_offset);
+		final long[] sums = mSumsFixed;
+		final long[] contrib = mContribFixed;
+		final int threshold = Math.round(mThreshold * mUnit);
+		if (full) {
+			for (int i = 0; i < N; i++) sums[i] = 0;
+		}
+		int updated = 0;
+		for (int k = 0; k < mBlocks; k++) {
+			final int ex = subX[k], ey = subY[k], et = subT[k];
+			if (!full && Math.abs(et) <= threshold && Math.abs(mStoredTFixed[k]) <= threshold
+					&& Math.abs(ex - mStoredXFixed[k]) <= threshold && Math.abs(ey - mStoredYFixed[k]) <= threshold)
+				continue;
+			final int x = k / subCols - x_offset;
+			final int y = k % subCols - y_offset;
+			final long G = (long) x * ex + (long) y * ey;
+			final long GG = G * G;
+			final long GGs = GG >> TTCEstimator.SHIFT_GG;
+			final long GTs = (G * et) >> TTCEstimator.SHIFT_G_ET;
+			final int o = k * N;
+			if (!full) {
+				for (int i = 0; i < N; i++) sums[i] -= contrib[o + i];
+			}
+			contrib[o] = GG;
+			contrib[o + 1] = (long) ex * ey;
+			contrib[o + 2] = G * ex;
+			contrib[o + 3] = G * ey;
+			contrib[o + 4] = G * et;
+			contrib[o + 5] = (long) ex * ex;
+			contrib[o + 6] = (long) ey * ey;
+			contrib[o + 7] = (long) ey * et;
+			contrib[o + 8] = (long) ex * et;
+			contrib[o + 9] = GGs * (x * y);
+			contrib[o + 10] = GTs * x;
+			contrib[o + 11] = GTs * y;
+			contrib[o + 12] = GGs * x;
+			contrib[o + 13] = GGs * y;
+			contrib[o + 14] = GGs * (x * x);
+			contrib[o + 15] = GGs * (y * y);
+			contrib[o + 16] = (long) et * et;
+			for (int i = 0; i < N; i++) sums[i] += contrib[o + i];
+			mStoredXFixed[k] = ex;
+			mStoredYFixed[k] = ey;
+			mStoredTFixed[k] = et;
+			updated++;
+		}
+		mUpdatedBlocks = updated;
+		TTCEstimator.fixedPointToSums(sums, mUnit, out);
+	}
+}
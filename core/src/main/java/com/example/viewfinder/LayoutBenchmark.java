@@ -0,0 +1,168 @@
+// Benchmark of the per-pixel plane layouts: the original jagged float[][] pipeline against the
+// flat row-major planes used by TTCEstimator (float and fixed point).
+// Runs on a device (from the options menu) or on a desktop JVM through main().
+
+package com.example.viewfinder;
+
+import java.util.Locale;
+
+public class LayoutBenchmark
+{
+	public static void main (String[] args)
+	{
+		int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		System.out.print(run(640, 480, frames));
+	}
+
+	public static String run (int width, int height, int frames)
+	{ // time each layout over a synthetic looming sequence, returns a small report
+		byte[][] sequence = new byte[8][];
+		for (int t = 0; t < sequence.length; t++) sequence[t] = syntheticFrame(width, height, 1 + 0.02 * t);
+
+		JaggedPipeline jagged = new JaggedPipeline(width, height);
+		TTCEstimator flat = new TTCEstimator(width, height);
+		TTCEstimator fixed = new TTCEstimator(width, height);
+		fixed.setFixedPoint(true);
+
+		float[] ttc = new float[3];
+		double[] msPerFrame = new double[3];
+		for (int pass = 0; pass < 2; pass++) {	// first pass is JIT warm-up
+			for (int p = 0; p < 3; p++) {
+				long tStart = System.nanoTime();
+				for (int f = 0; f < frames; f++) {
+					byte[] frame = sequence[f % sequence.length];
+					if (p == 0) ttc[p] = jagged.processFrame(frame).ttc1;
+					else ttc[p] = (p == 1 ? flat : fixed).processFrame(frame).ttc1;
+				}
+				msPerFrame[p] = (System.nanoTime() - tStart) / 1e6 / frames;
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "layout benchmark %d x %d, %d frames\n", width, height, frames));
+		String[] names = { "jagged float[][]", "flat float[]", "flat fixed point" };
+		for (int p = 0; p < 3; p++) {
+			sb.append(String.format(Locale.US, "%-18s %8.3f ms/frame  x%.2f  ttc1 %.4f\n",
+					names[p], msPerFrame[p], msPerFrame[0] / msPerFrame[p], ttc[p]));
+		}
+		return sb.toString();
+	}
+
+	static byte[] syntheticFrame (int width, int height, double scale)
+	{ // NV21 frame of a smooth texture magnified by "scale" about the image center
+		byte[] yuv = new byte[width * height * 3 / 2];
+		for (int r = 0; r < height; r++) {
+			for (int c = 0; c < width; c++) {
+				double u = (c - width / 2) / scale, v = (r - height / 2) / scale;
+				double y = 128 + 45 * Math.sin(0.07 * u + 0.3) * Math.cos(0.05 * v) + 30 * Math.sin(0.023 * (u + v));
+				yuv[r * width + c] = (byte) Math.round(y);
+			}
+		}
+		for (int i = width * height; i < yuv.length; i++) yuv[i] = (byte) 128;
+		return yuv;
+	}
+
+	// The float pipeline as it was written against jagged arrays (kept only as a reference)
+	static class JaggedPipeline
+	{
+		final int mWidth, mHeight, mSubRows, mSubCols;
+		int frame = 0;
+		float[] brightness, prevBrightness;
+		float[][] E, prevE, E_x, E_y, E_t, prevE_x, prevE_y, prevE_t;
+		final TTCSums mSums = new TTCSums();
+		final TTCResult mResult = new TTCResult();
+
+		JaggedPipeline (int width, int height)
+		{
+			mWidth = width;
+			mHeight = height;
+			mSubRows = height / TTCEstimator.BLOCK;
+			mSubCols = width / TTCEstimator.BLOCK;
+			brightness = new float[width * height];
+			prevBrightness = new float[width * height];
+			E = new float[height][width];
+			prevE = new float[height][width];
+			E_x = new float[height][width];
+			E_y = new float[height][width];
+			E_t = new float[height][width];
+			prevE_x = new float[height][width];
+			prevE_y = new float[height][width];
+			prevE_t = new float[height][width];
+		}
+
+		TTCResult processFrame (byte[] yuv420sp)
+		{
+			final int BLOCK = TTCEstimator.BLOCK;
+			if (frame > 1) {
+				float[] tmp = prevBrightness;
+				prevBrightness = brightness;
+				brightness = tmp;
+			}
+			frame += 1;
+			TTCEstimator.decodeYUV420SPGrayscale(null, brightness, yuv420sp, mWidth, mHeight);
+			if (frame <= 2) System.arraycopy(brightness, 0, prevBrightness, 0, brightness.length);
+
+			for (int i=0; i < mHeight; i++){
+				for (int j=0; j < mWidth; j++){
+					E[i][j] = brightness[i*mWidth + j];
+					prevE[i][j] = prevBrightness[i*mWidth + j];
+				}
+			}
+			for (int a=0; a < mHeight; a++) {
+				for (int b = 0; b < mWidth; b++) {
+					prevE_x[a][b] = (frame > 1) ? E_x[a][b] : 0;
+					prevE_y[a][b] = (frame > 1) ? E_y[a][b] : 0;
+					prevE_t[a][b] = (frame > 1) ? E_t[a][b] : 0;
+					E_x[a][b] = (a == mHeight-1) ? 0 : E[a][b] - E[a + 1][b];
+					E_y[a][b] = (b == mWidth-1) ? 0 : E[a][b] - E[a][b + 1];
+					E_t[a][b] = E[a][b] - prevE[a][b];
+				}
+			}
+
+			float[][] subE_x = new float[mSubRows][mSubCols];
+			float[][] subE_y = new float[mSubRows][mSubCols];
+			float[][] subE_t = new float[mSubRows][mSubCols];
+			for (int a=0; a < mSubRows; a++) {
+				for (int b = 0; b < mSubCols; b++) {
+					float xAvg = 0, yAvg = 0, tAvg = 0;
+					for (int xStart = a*BLOCK; xStart < (a+1)*BLOCK; xStart++) {
+						for (int yStart = b*BLOCK; yStart < (b+1)*BLOCK; yStart++) {
+							xAvg += E_x[xStart][yStart] + prevE_x[xStart][yStart];
+							yAvg += E_y[xStart][yStart] + prevE_y[xStart][yStart];
+							tAvg += E_t[xStart][yStart] + prevE_t[xStart][yStart];
+						}
+					}
+					subE_x[a][b] = xAvg / (2*BLOCK*BLOCK);
+					subE_y[a][b] = yAvg / (2*BLOCK*BLOCK);
+					subE_t[a][b] = tAvg / (2*BLOCK*BLOCK);
+				}
+			}
+
+			TTCSums s = mSums;
+			s.clear();
+			int x_offset = mSubRows / 2, y_offset = mSubCols / 2;
+			for (int a=0; a < mSubRows; a++){
+				for (int b=0; b < mSubCols; b++){
+					float G = (a-x_offset) * subE_x[a][b] + (b-y_offset) * subE_y[a][b];
+					s.sum_g_squared += G * G;
+					s.sum_ex_ey += subE_x[a][b] * subE_y[a][b];
+					s.sum_g_ex += G * subE_x[a][b];
+					s.sum_g_ey += G * subE_y[a][b];
+					s.sum_g_et += G * subE_t[a][b];
+					s.sum_ex_squared += subE_x[a][b] * subE_x[a][b];
+					s.sum_ey_squared += subE_y[a][b] * subE_y[a][b];
+					s.sum_ey_et += subE_y[a][b] * subE_t[a][b];
+					s.sum_ex_et += subE_x[a][b] * subE_t[a][b];
+					s.sum_g_squared_x_y += G * G * (a-x_offset) * (b-y_offset);
+					s.sum_g_x_et += G * (a-x_offset) * subE_t[a][b];
+					s.sum_g_y_et += G * (b-y_offset) * subE_t[a][b];
+					s.sum_g_squared_x += G * G * (a-x_offset);
+					s.sum_g_squared_y += G * G * (b-y_offset);
+					s.sum_g_squared_x_squared += G * G * (a-x_offset) * (a-x_offset);
+					s.sum_g_squared_y_squared += G * G * (b-y_offset) * (b-y_offset);
+				}
+			}
+			TTCSolver.solve(s, mResult);
+			return mResult;
+		}
+	}
+}
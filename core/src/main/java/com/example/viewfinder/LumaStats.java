@@ -0,0 +1,94 @@
+// Luma statistics gathered during the luma decode (TTCEstimator.decodeLuma, decodeBrightness):
+// histogram, mean and variance of every mStride-th pixel, in the same single pass over the frame.
+// The mean of the previous frame is carried forward rather than recomputed, so detecting an
+// exposure change from one frame to the next costs nothing extra.
+
+package com.example.viewfinder;
+
+public class LumaStats
+{
+	public static final int NBINS = 256;
+
+	int mStride = 4;					// sample every mStride-th pixel (1: every pixel)
+	float mExposureThreshold = 0.05f;	// relative change of the mean that counts as an exposure change
+	final int[] mHistogram = new int[NBINS];
+	int mCount;							// pixels sampled
+	double mMean = Double.NaN;			// luma units (0..239)
+	double mPrevMean = Double.NaN;
+	double mVariance;
+
+	public void setStride (int stride)
+	{
+		mStride = Math.max(1, stride);
+	}
+
+	public int getStride ()
+	{
+		return mStride;
+	}
+
+	public void setExposureThreshold (float threshold)
+	{
+		mExposureThreshold = threshold;
+	}
+
+	public int[] histogram ()
+	{
+		return mHistogram;
+	}
+
+	public int count ()
+	{
+		return mCount;
+	}
+
+	public double mean ()
+	{
+		return mMean;
+	}
+
+	public double prevMean ()
+	{
+		return mPrevMean;
+	}
+
+	public double variance ()
+	{
+		return mVariance;
+	}
+
+	public double stdDev ()
+	{
+		return Math.sqrt(mVariance);
+	}
+
+	public double meanChange ()
+	{ // change of the mean since the previous frame (0 on the first frame)
+		return mMean - mPrevMean;
+	}
+
+	public boolean exposureChanged ()
+	{
+		return Math.abs(meanChange()) > mExposureThreshold * Math.max(mPrevMean, 1);
+	}
+
+	void restart ()
+	{ // the next frame has no previous one to compare with
+		mMean = Double.NaN;
+	}
+
+	int[] begin ()
+	{ // called by the decoder before a frame, returns the (cleared) histogram to fill in
+		mPrevMean = mMean;
+		for (int bin = 0; bin < NBINS; bin++) mHistogram[bin] = 0;
+		return mHistogram;
+	}
+
+	void end (int count, long sum, long sumSquared)
+	{ // called by the decoder after a frame with the zeroth, first and second moments
+		mCount = count;
+		mMean = (double) sum / count;
+		mVariance = Math.max(0, (double) sumSquared / count - mMean * mMean);
+		if (Double.isNaN(mPrevMean)) mPrevMean = mMean;	// first frame compares against itself
+	}
+}
@@ -0,0 +1,79 @@
+// Picks (or blends) one TTC from the three models, using each model's least-squares residual.
+// Models are compared with the Bayesian information criterion, BIC = n ln(SSE / n) + k ln n,
+// so the 3 parameter models have to earn their extra parameters. Blending is done on
+// C = 1 / TTC (which goes smoothly through zero) with weights exp(-BIC / 2).
+// If case 1 alone already explains most of E_t, cases 2 and 3 are not solved at all.
+
+package com.example.viewfinder;
+
+public class ModelSelector
+{
+	boolean mBlend = true;			// blend the models (otherwise publish the best one)
+	double mSkipFit = 0.95;			// case 1 fit (R^2) above which cases 2 and 3 are skipped
+
+	private static final int[] NPARAMS = { 1, 3, 3 };
+	private final double[] mBic = new double[3];
+	private final double[] mC = new double[3];
+
+	public void setBlend (boolean blend)
+	{
+		mBlend = blend;
+	}
+
+	public void setSkipFit (double skipFit)
+	{
+		mSkipFit = skipFit;
+	}
+
+	public void solve (TTCSums s, TTCResult r)
+	{ // fills in the per-model results as well as the published ttc, model and confidence
+		TTCSolver.solveCase1(s, r);
+		double fit1 = fit(r.residual1, s.sum_et_squared);
+		if (fit1 >= mSkipFit) {
+			r.ttc2 = Float.NaN;
+			r.ttc3 = Double.NaN;
+			r.x_0 = r.y_0 = Float.NaN;
+			r.residual2 = r.residual3 = Double.NaN;
+			r.ttc = r.ttc1;
+			r.model = 1;
+			r.confidence = (float) fit1;
+			return;
+		}
+		TTCSolver.solveCase2(s, r);
+		TTCSolver.solveCase3(s, r);
+
+		double[] residual = { r.residual1, r.residual2, r.residual3 };
+		mC[0] = 1 / r.ttc1;
+		mC[1] = 1 / r.ttc2;
+		mC[2] = 1 / r.ttc3;
+		int n = Math.max(s.n, 1);
+		int best = -1;
+		for (int m = 0; m < 3; m++) {
+			boolean usable = residual[m] > 0 && !Double.isInfinite(residual[m]) && !Double.isNaN(mC[m]) && !Double.isInfinite(mC[m]);
+			mBic[m] = usable ? n * Math.log(residual[m] / n) + NPARAMS[m] * Math.log(n) : Double.NaN;
+			if (usable && (best < 0 || mBic[m] < mBic[best])) best = m;
+		}
+		if (best < 0) {	// nothing usable (e.g. no texture or no motion)
+			r.ttc = Float.NaN;
+			r.model = 0;
+			r.confidence = 0;
+			return;
+		}
+		double weightSum = 0, blendC = 0;
+		for (int m = 0; m < 3; m++) {
+			if (Double.isNaN(mBic[m])) continue;
+			double w = Math.exp(-0.5 * (mBic[m] - mBic[best]));
+			weightSum += w;
+			blendC += w * mC[m];
+		}
+		r.model = best + 1;
+		r.ttc = (float) (mBlend ? weightSum / blendC : 1 / mC[best]);
+		r.confidence = (float) (fit(residual[best], s.sum_et_squared) / weightSum);	// best weight is 1
+	}
+
+	static double fit (double residual, double sum_et_squared)
+	{ // fraction of the E_t variation explained by a model (R^2), 0 if unusable
+		if (!(sum_et_squared > 0) || Double.isNaN(residual)) return 0;
+		return Math.max(0, Math.min(1, 1 - residual / sum_et_squared));
+	}
+}
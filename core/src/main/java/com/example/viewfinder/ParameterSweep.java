@@ -0,0 +1,426 @@
+// Parameter sweep of the estimator's knobs over a recorded or synthetic sequence:
+//	block size      - subsample factor (4 in the live pipeline)
+//	origin          - pixel the coordinate system is centered on (x_offset = 60, y_offset = 80
+//	                  on the 4x4 grid, i.e. the image center)
+//	threshold       - only blocks with |E_t| > threshold * |avgE_t| enter the sums (0 is off;
+//	                  the original E_threshold = |avgE_t| / 2 gate, which was commented out)
+//	temporal taps   - stencil for E_t
+//	logging         - the per-frame TTC strings built in onDraw (with frame numbers after frame 330)
+// Decoded luma and the block sums of luma, E_x, E_y (the per-pixel stages) are cached keyed by
+// frame, resolution and block size, so every combination only reruns the per-block stages
+// (stencil, threshold, sums, solve). The cost column still charges each combination for the
+// per-pixel stages it would need when running live.
+// Coordinates are counted in blocks, so the estimator's TTC is in units of block frames; it is
+// multiplied by the block size (and negated, approach is negative) before it is compared.
+// Runs on a desktop JVM through main().
+
+package com.example.viewfinder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class ParameterSweep
+{
+	static final int LOG_FRAME_NUMBERS_FROM = 330;	// as in DrawOnTop.onDraw
+
+	public static class Config
+	{
+		public final int block, originRow, originCol, taps;
+		public final float threshold;
+		public final boolean logging;
+
+		public Config (int block, int originRow, int originCol, float threshold, int taps, boolean logging)
+		{
+			this.block = block;
+			this.originRow = originRow;
+			this.originCol = originCol;
+			this.threshold = threshold;
+			this.taps = taps;
+			this.logging = logging;
+		}
+	}
+
+	public static class Row
+	{
+		public Config config;
+		public int frames;			// frames scored (after the stencil warm-up)
+		public int failed;			// of which gave no usable TTC
+		public double meanError;	// mean relative TTC error of the others
+		public double p90Error;
+		public double perPixelMs;	// luma decode + block sums, per frame
+		public double perBlockMs;	// stencil, threshold, sums, solve (+ logging), per frame
+	}
+
+	final int mWidth, mHeight;
+	int[] mBlocks = { 4 };
+	int[][] mOrigins;				// { row, col } in pixels, default the image center
+	float[] mThresholds = { 0 };
+	int[] mTaps = { 3 };
+	boolean[] mLogging = { false };
+	final IntermediateCache mCache = new IntermediateCache(256L << 20);
+
+	public ParameterSweep (int width, int height)
+	{
+		mWidth = width;
+		mHeight = height;
+		mOrigins = new int[][] { { height / 2, width / 2 } };
+	}
+
+	public void setBlockSizes (int... blocks)
+	{
+		mBlocks = blocks;
+	}
+
+	public void setOrigins (int[]... origins)
+	{
+		mOrigins = origins;
+	}
+
+	public void setThresholds (float... thresholds)
+	{
+		mThresholds = thresholds;
+	}
+
+	public void setTemporalTaps (int... taps)
+	{
+		mTaps = taps;
+	}
+
+	public void setLogging (boolean... logging)
+	{
+		mLogging = logging;
+	}
+
+	public IntermediateCache getCache ()
+	{
+		return mCache;
+	}
+
+	public List<Config> configs ()
+	{
+		List<Config> configs = new ArrayList<Config>();
+		for (int block : mBlocks)
+			for (int[] origin : mOrigins)
+				for (float threshold : mThresholds)
+					for (int taps : mTaps)
+						for (boolean logging : mLogging)
+							configs.add(new Config(block, origin[0], origin[1], threshold, taps, logging));
+		return configs;
+	}
+
+	public List<Row> run (BatchProcessor.FrameSource source, double[] truth) throws IOException
+	{ // truth[i] is the TTC (in frames, positive) of frame i; if null the first
+	  // combination's estimates are the reference instead
+		List<Config> configs = configs();
+		mCache.setSource(source);
+		int nFrames = source.frameCount();
+		Run[] runs = new Run[configs.size()];
+		for (int c = 0; c < runs.length; c++) runs[c] = new Run(configs.get(c), nFrames);
+		long[] perPixelNanos = new long[mBlocks.length];
+		byte[] yuv = new byte[mWidth * mHeight * 3 / 2];
+
+		// frames on the outside so that only the current frame's intermediates have to be live
+		for (int i = 0; i < nFrames; i++) {
+			boolean read = false;
+			for (int b = 0; b < mBlocks.length; b++) {
+				IntermediateCache.Entry entry = mCache.blockSums(i, mWidth, mHeight, mBlocks[b]);
+				if (entry == null) {
+					if (!read) source.read(i, yuv);
+					read = true;
+					entry = mCache.computeBlockSums(i, mWidth, mHeight, mBlocks[b], yuv);
+				}
+				perPixelNanos[b] += entry.nanos;
+			}
+			for (Run r : runs) {
+				IntermediateCache.Entry entry = mCache.blockSums(i, mWidth, mHeight, r.mConfig.block);
+				r.process(i, entry.planes);
+			}
+		}
+
+		List<Row> rows = new ArrayList<Row>();
+		double[] reference = truth;
+		for (Run r : runs) {
+			if (reference == null) reference = r.mTTC;	// first combination
+			Row row = r.score(reference, truth == null);
+			for (int b = 0; b < mBlocks.length; b++)
+				if (mBlocks[b] == row.config.block) row.perPixelMs = perPixelNanos[b] / 1e6 / nFrames;
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	// downstream state of one parameter combination
+	class Run
+	{
+		final Config mConfig;
+		final int mSubRows, mSubCols;
+		final TemporalStencil mStencil;
+		final float[] subE_x, subE_y, subE_t;
+		final TTCSums mSums = new TTCSums();
+		final TTCResult mResult = new TTCResult();
+		final ModelSelector mSelector = new ModelSelector();
+		final double[] mTTC;		// normalized estimate per frame (NaN if unusable)
+		final StringBuilder mLog = new StringBuilder();
+		long mNanos;
+
+		Run (Config config, int nFrames)
+		{
+			mConfig = config;
+			mSubRows = mHeight / config.block;
+			mSubCols = mWidth / config.block;
+			int nBlocks = mSubRows * mSubCols;
+			mStencil = new TemporalStencil(config.taps, nBlocks, config.block * config.block);
+			mStencil.allocateFloat();
+			subE_x = new float[nBlocks];
+			subE_y = new float[nBlocks];
+			subE_t = new float[nBlocks];
+			mTTC = new double[nFrames];
+		}
+
+		void process (int i, float[][] planes)
+		{
+			long tStart = System.nanoTime();
+			int slot = mStencil.push();
+			int nBlocks = subE_t.length;
+			System.arraycopy(planes[0], 0, mStencil.mLuma[slot], 0, nBlocks);
+			System.arraycopy(planes[1], 0, mStencil.mGradX[slot], 0, nBlocks);
+			System.arraycopy(planes[2], 0, mStencil.mGradY[slot], 0, nBlocks);
+			mStencil.combine(subE_x, subE_y, subE_t);
+
+			int used = nBlocks;
+			if (mConfig.threshold > 0) {	// blocks below the threshold contribute nothing
+				float avgE_t = 0;
+				for (int k = 0; k < nBlocks; k++) avgE_t += subE_t[k];
+				float limit = mConfig.threshold * Math.abs(avgE_t / nBlocks);
+				for (int k = 0; k < nBlocks; k++) {
+					if (Math.abs(subE_t[k]) > limit) continue;
+					subE_x[k] = subE_y[k] = subE_t[k] = 0;
+					used--;
+				}
+			}
+			int x_offset = mConfig.originRow / mConfig.block;
+			int y_offset = mConfig.originCol / mConfig.block;
+			TTCEstimator.floatSums(subE_x, subE_y, subE_t, mSubRows, mSubCols, x_offset, y_offset, mSums);
+			mSums.n = used;
+			mSelector.solve(mSums, mResult);
+			mTTC[i] = -mResult.ttc * mConfig.block;
+
+			if (mConfig.logging) {	// what onDraw does with each result (one of its three strings)
+				if (i + 1 > LOG_FRAME_NUMBERS_FROM) mLog.append(String.format("%.2f", mResult.ttc1) + ", " + String.valueOf(i + 1) + "; ");
+				else mLog.append(String.format("%.2f", mResult.ttc1) + "; ");
+			}
+			mNanos += System.nanoTime() - tStart;
+		}
+
+		Row score (double[] reference, boolean referenceIsEstimate)
+		{
+			Row row = new Row();
+			row.config = mConfig;
+			int warmUp = mTaps.length == 0 ? 0 : max(mTaps) - 1;	// same frames for every combination
+			double[] errors = new double[mTTC.length];
+			int n = 0;
+			for (int i = warmUp; i < mTTC.length; i++) {
+				row.frames++;
+				// truth refers to the instant the stencil is centered on, an estimate to its own frame
+				double expected = referenceIsEstimate ? reference[i] : interpolate(reference, i - mStencil.delay());
+				double e = Math.abs(mTTC[i] - expected) / Math.abs(expected);
+				if (Double.isNaN(e) || Double.isInfinite(e)) row.failed++;
+				else errors[n++] = e;
+			}
+			Arrays.sort(errors, 0, n);
+			double sum = 0;
+			for (int k = 0; k < n; k++) sum += errors[k];
+			row.meanError = n > 0 ? sum / n : Double.NaN;
+			row.p90Error = n > 0 ? errors[Math.min(n - 1, (int) Math.ceil(0.9 * n) - 1)] : Double.NaN;
+			row.perBlockMs = mNanos / 1e6 / mTTC.length;
+			return row;
+		}
+	}
+
+	static int max (int[] values)
+	{
+		int m = values[0];
+		for (int v : values) m = Math.max(m, v);
+		return m;
+	}
+
+	static double interpolate (double[] values, double t)
+	{ // linear interpolation at fractional index t
+		int i = (int) Math.floor(t);
+		if (i < 0) return values[0];
+		if (i >= values.length - 1) return values[values.length - 1];
+		double f = t - i;
+		return values[i] * (1 - f) + values[i + 1] * f;
+	}
+
+	public static String table (List<Row> rows)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("block origin(r,c) thresh taps log |  err mean   err p90  failed | pixel ms  block ms  total ms\n");
+		for (Row row : rows) {
+			Config c = row.config;
+			sb.append(String.format(Locale.US, "%5d %5d,%-5d %6.2f %4d %3s | %8.2f%% %8.2f%% %4d/%-4d | %8.3f %9.3f %9.3f\n",
+					c.block, c.originRow, c.originCol, c.threshold, c.taps, c.logging ? "on" : "off",
+					100 * row.meanError, 100 * row.p90Error, row.failed, row.frames,
+					row.perPixelMs, row.perBlockMs, row.perPixelMs + row.perBlockMs));
+		}
+		return sb.toString();
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	// Least recently used cache of the per-pixel intermediates, bounded in bytes
+	public static class IntermediateCache
+	{
+		static class Key
+		{
+			final int frame, width, height, block;	// block 0 for the decoded luma
+
+			Key (int frame, int width, int height, int block)
+			{
+				this.frame = frame;
+				this.width = width;
+				this.height = height;
+				this.block = block;
+			}
+
+			@Override
+			public boolean equals (Object o)
+			{
+				if (!(o instanceof Key)) return false;
+				Key k = (Key) o;
+				return frame == k.frame && width == k.width && height == k.height && block == k.block;
+			}
+
+			@Override
+			public int hashCode ()
+			{
+				return ((frame * 31 + width) * 31 + height) * 31 + block;
+			}
+		}
+
+		public static class Entry
+		{
+			final float[][] planes;	// luma: { brightness }, block sums: { luma, E_x, E_y }
+			final long nanos;		// time it took to compute (including the decode it needed)
+
+			Entry (float[][] planes, long nanos)
+			{
+				this.planes = planes;
+				this.nanos = nanos;
+			}
+
+			long bytes ()
+			{
+				return 4L * planes.length * planes[0].length;
+			}
+		}
+
+		final long mMaxBytes;
+		long mBytes;
+		Object mSource;				// the frames the entries came from
+		public int hits, misses;
+		final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+		float[] mColL, mColX;		// scratch for the block sums
+
+		public IntermediateCache (long maxBytes)
+		{
+			mMaxBytes = maxBytes;
+		}
+
+		void setSource (Object source)
+		{ // the keys only tell frames of one source apart: another source starts empty
+			if (source == mSource) return;
+			mEntries.clear();
+			mBytes = 0;
+			mSource = source;
+		}
+
+		Entry blockSums (int frame, int width, int height, int block)
+		{ // null if not cached
+			Entry entry = mEntries.get(new Key(frame, width, height, block));
+			if (entry != null) hits++;
+			return entry;
+		}
+
+		Entry computeBlockSums (int frame, int width, int height, int block, byte[] yuv420sp)
+		{
+			misses++;
+			Key lumaKey = new Key(frame, width, height, 0);
+			Entry luma = mEntries.get(lumaKey);
+			long decodeNanos;
+			if (luma == null) {
+				float[] brightness = new float[width * height];
+				long tStart = System.nanoTime();	// allocation is not part of the live cost
+				TTCEstimator.decodeYUV420SPGrayscale(null, brightness, yuv420sp, width, height);
+				decodeNanos = System.nanoTime() - tStart;
+				luma = put(lumaKey, new Entry(new float[][] { brightness }, decodeNanos));
+			} else {
+				decodeNanos = luma.nanos;
+			}
+			if (mColL == null || mColL.length < width) {
+				mColL = new float[width];
+				mColX = new float[width];
+			}
+			int nBlocks = (height / block) * (width / block);
+			float[][] planes = new float[3][nBlocks];
+			long tStart = System.nanoTime();
+			TTCEstimator.floatBlockSums(luma.planes[0], width, height, block, mColL, mColX, planes[0], planes[1], planes[2]);
+			return put(new Key(frame, width, height, block), new Entry(planes, decodeNanos + System.nanoTime() - tStart));
+		}
+
+		private Entry put (Key key, Entry entry)
+		{
+			mEntries.put(key, entry);
+			mBytes += entry.bytes();
+			Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+			while (mBytes > mMaxBytes && it.hasNext()) {	// evict least recently used (never the new one)
+				Map.Entry<Key, Entry> eldest = it.next();
+				if (eldest.getValue() == entry) break;
+				mBytes -= eldest.getValue().bytes();
+				it.remove();
+			}
+			return entry;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	public static void main (String[] args) throws IOException
+	{ // ParameterSweep [file.nv21 width height] -- without arguments sweeps a synthetic sequence
+		BatchProcessor.FrameSource source;
+		BatchProcessor.RawFileSource file = null;
+		int width = 640, height = 480;
+		double[] truth = null;
+		if (args.length >= 3) {
+			width = Integer.parseInt(args[1]);
+			height = Integer.parseInt(args[2]);
+			source = file = new BatchProcessor.RawFileSource(new java.io.File(args[0]), width, height);
+		} else {
+			BatchProcessor.SyntheticSource synthetic = new BatchProcessor.SyntheticSource(width, height, 60, 0.01);
+			truth = new double[synthetic.frameCount()];
+			for (int i = 0; i < truth.length; i++) truth[i] = synthetic.timeToContact(i);
+			source = synthetic;
+		}
+		try {
+			ParameterSweep sweep = new ParameterSweep(width, height);
+			sweep.setBlockSizes(2, 4, 8, 16);
+			sweep.setOrigins(new int[] { height / 2, width / 2 }, new int[] { height / 2 + 40, width / 2 + 60 });
+			sweep.setThresholds(0, 0.5f);
+			sweep.setTemporalTaps(2, 3, 5);
+			sweep.setLogging(false, true);
+			List<Row> rows = sweep.run(source, truth);
+			System.out.print(table(rows));
+			IntermediateCache cache = sweep.getCache();
+			System.out.printf(Locale.US, "cache: %d hits, %d misses\n", cache.hits, cache.misses);
+		} finally {
+			if (file != null) file.close();
+		}
+	}
+}
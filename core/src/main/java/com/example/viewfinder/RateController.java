@@ -0,0 +1,285 @@
+// Adaptive rate control: keeps the per-frame processing time inside a latency budget while the
+// load or the temperature of the phone changes (a warm phone throttles its CPU, so the same
+// work takes longer, until frames pile up and the TTC lags behind).
+// From the selected profile a ladder of levels is derived, each cheaper than the one before:
+// coarser blocks, then a lower preview resolution with finer blocks again (same grid, a quarter
+// of the pixels), and so on while the grid keeps at least MIN_BLOCKS blocks and the camera has
+// a smaller preview size to offer (it runs at the size nearest the pixels asked for), then processing
+// only every 2nd or 3rd frame (that does not shorten a frame, but it lowers the load, and
+// with it the heat, when even the cheapest grid is over budget).
+// At the end of every window of WINDOW processed frames the p90 processing time and the share
+// of dropped frames are checked:
+//	over budget, too many drops or battery critical  -> one level down, at once
+//	well under budget for mUpWindows windows in a row -> one level up, if the level above is
+//	expected to fit: the current p90 times the cost ratio of the two levels, measured in the
+//	windows just before and after the last step between them (so under about the same
+//	throttling, which slows every level alike)
+// A step up that has to be taken back within BOUNCE_WINDOWS doubles the wait before the next
+// one (up to MAX_UP_WINDOWS), so a phone sitting at its thermal limit does not oscillate.
+// Every adjustment is kept with the measurements behind it (the last ADJUSTMENTS of them).
+// Not thread safe, except for setTemperature.
+
+package com.example.viewfinder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RateController
+{
+	static final int WINDOW = 30;			// processed frames per decision
+	static final int SETTLE = 5;			// frames ignored after a change (allocation, history)
+	static final int MIN_BLOCKS = 40 * 30;	// smallest grid for a level
+	static final int MAX_INTERVAL = 3;		// process at least every 3rd frame
+	static final int MIN_UP_WINDOWS = 3;
+	static final int MAX_UP_WINDOWS = 48;
+	static final int BOUNCE_WINDOWS = 4;	// a step up taken back within this many windows did not hold
+	static final int ADJUSTMENTS = 32;
+
+	public static class Level
+	{
+		public final EstimatorProfile profile;
+		public final int interval;		// process every interval-th frame
+
+		Level (EstimatorProfile profile, int interval)
+		{
+			this.profile = profile;
+			this.interval = interval;
+		}
+
+		@Override
+		public String toString ()
+		{
+			return "~" + profile.previewPixels + " pixels, " + profile.block + "x" + profile.block + " blocks"
+					+ (interval > 1 ? ", every " + interval + " frames" : "");
+		}
+	}
+
+	public static class Adjustment
+	{
+		public int frame;				// processed frames so far
+		public int from, to;			// levels
+		public long p90Micros;			// processing time in the window that decided it
+		public float dropRatio;			// share of the frames dropped in that window
+		public float temperature;		// battery temperature, NaN if unknown
+		public String reason;
+
+		@Override
+		public String toString ()
+		{
+			return String.format("frame %6d  level %d -> %d  p90 %7.2f ms  dropped %3.0f%%  %5.1f C  %s",
+					frame, from, to, p90Micros / 1000.0, 100 * dropRatio, temperature, reason);
+		}
+	}
+
+	final Level[] mLevels;
+	final long mBudgetNanos;
+	float mLowWater = 0.5f;			// a window is calm if its p90 is below this fraction of the budget
+	float mUpFit = 0.8f;			// and the level above must be expected below this fraction
+	float mMaxDropRatio = 0.2f;		// more dropped frames than this is overload too
+	float mHotCelsius = 40;			// no steps up at or above this battery temperature
+	float mCriticalCelsius = 45;	// step down at or above this one
+	volatile float mTemperature = Float.NaN;	// set from another thread
+
+	int mLevel;
+	int mUpWindows = MIN_UP_WINDOWS;	// calm windows needed before a step up
+	int mCalmWindows;
+	int mWindowsSinceUp = -1;		// -1: no step up to watch
+	int mFrames;					// processed frames
+	int mSettle = SETTLE;
+	int mCount, mDropped;			// the current window
+	final long[] mTimes = new long[WINDOW];
+	final long[] mSorted = new long[WINDOW];
+	final long[] mCost;				// last p90 of each level (0: not measured)
+	final double[] mRatio;			// cost of level k - 1 over level k (0: not measured)
+	int mStepFrom = -1;				// level before the last step, until the first window after it
+	long mLastP90;
+	float mLastDropRatio;
+	final Adjustment[] mAdjustments = new Adjustment[ADJUSTMENTS];
+	int mAdjustmentCount;
+
+	public RateController (EstimatorProfile base, long budgetNanos)
+	{
+		this(base, budgetNanos, null);
+	}
+
+	public RateController (EstimatorProfile base, long budgetNanos, int[] previewSizes)
+	{ // previewSizes: pixel counts of the camera's preview sizes (null: any size is available)
+		mLevels = ladder(base, previewSizes);
+		mBudgetNanos = budgetNanos;
+		mCost = new long[mLevels.length];
+		mRatio = new double[mLevels.length];
+	}
+
+	static Level[] ladder (EstimatorProfile base)
+	{
+		return ladder(base, null);
+	}
+
+	static Level[] ladder (EstimatorProfile base, int[] previewSizes)
+	{ // the levels, from the full profile down to the cheapest
+		List<Level> levels = new ArrayList<Level>();
+		EstimatorProfile p = base;
+		levels.add(new Level(p, 1));
+		while (true) {
+			EstimatorProfile next;
+			if (p.block < 8) next = p.with(p.previewPixels, 2 * p.block);
+			else next = p.with(p.previewPixels / 4, p.block / 2);
+			int pixels = nearestSize(previewSizes, next.previewPixels);
+			if (pixels / (next.block * next.block) < MIN_BLOCKS) break;
+			if (pixels >= nearestSize(previewSizes, p.previewPixels) && next.block < p.block)
+				break;		// the camera cannot go smaller: finer blocks on the same frame cost more
+			levels.add(new Level(next, 1));
+			p = next;
+		}
+		for (int interval = 2; interval <= MAX_INTERVAL; interval++) levels.add(new Level(p, interval));
+		return levels.toArray(new Level[levels.size()]);
+	}
+
+	static int nearestSize (int[] previewSizes, int pixels)
+	{ // the preview size (pixel count) the camera runs at when asked for about this many pixels
+		if (previewSizes == null) return pixels;
+		int nearest = pixels;
+		for (int k = 0; k < previewSizes.length; k++)
+			if (k == 0 || Math.abs(previewSizes[k] - pixels) < Math.abs(nearest - pixels)) nearest = previewSizes[k];
+		return nearest;
+	}
+
+	public void setTemperature (float celsius)
+	{ // battery temperature (may be called from another thread), NaN if unknown
+		mTemperature = celsius;
+	}
+
+	public int levels ()
+	{
+		return mLevels.length;
+	}
+
+	public Level level ()
+	{
+		return mLevels[mLevel];
+	}
+
+	public int levelIndex ()
+	{
+		return mLevel;
+	}
+
+	public long budgetNanos ()
+	{
+		return mBudgetNanos;
+	}
+
+	public Adjustment lastAdjustment ()
+	{
+		return (mAdjustmentCount == 0) ? null : mAdjustments[(mAdjustmentCount - 1) % ADJUSTMENTS];
+	}
+
+	public int adjustments ()
+	{
+		return mAdjustmentCount;
+	}
+
+	public boolean frameProcessed (long nanos, int dropped)
+	{ // one more processed frame and the frames dropped since the one before, true if the level changed
+		mFrames++;
+		if (mSettle > 0) {
+			mSettle--;
+			return false;
+		}
+		mTimes[mCount++] = nanos;
+		mDropped += dropped;
+		if (mCount < WINDOW) return false;
+		return endWindow();
+	}
+
+	private boolean endWindow ()
+	{
+		System.arraycopy(mTimes, 0, mSorted, 0, WINDOW);
+		Arrays.sort(mSorted);
+		long p90 = mSorted[WINDOW * 9 / 10];
+		float dropRatio = (float) mDropped / (mDropped + WINDOW);
+		mCount = 0;
+		mDropped = 0;
+		mLastP90 = p90;
+		mLastDropRatio = dropRatio;
+		mCost[mLevel] = p90;
+		if (mStepFrom >= 0) {	// first window after a step: compare with the last one before it
+			if (mStepFrom == mLevel + 1) mRatio[mStepFrom] = (double) p90 / mCost[mStepFrom];
+			else mRatio[mLevel] = (double) mCost[mStepFrom] / p90;
+			mStepFrom = -1;
+		}
+		if (mWindowsSinceUp >= 0) mWindowsSinceUp++;
+		float temperature = mTemperature;
+
+		String overload = null;
+		if (temperature >= mCriticalCelsius) overload = "battery critical";
+		else if (p90 > mBudgetNanos) overload = "over budget";
+		else if (dropRatio > mMaxDropRatio) overload = "dropping frames";
+		if (overload != null) {
+			mCalmWindows = 0;
+			if (mWindowsSinceUp >= 0 && mWindowsSinceUp <= BOUNCE_WINDOWS)	// the last step up did not hold
+				mUpWindows = Math.min(2 * mUpWindows, MAX_UP_WINDOWS);
+			mWindowsSinceUp = -1;
+			if (mLevel == mLevels.length - 1) return false;	// nothing cheaper left
+			return step(mLevel + 1, overload);
+		}
+		if (mWindowsSinceUp > BOUNCE_WINDOWS) {		// the last step up held
+			mWindowsSinceUp = -1;
+			mUpWindows = Math.max(mUpWindows / 2, MIN_UP_WINDOWS);
+		}
+
+		boolean calm = p90 < mLowWater * mBudgetNanos && dropRatio <= mMaxDropRatio / 4
+				&& !(temperature >= mHotCelsius);
+		mCalmWindows = calm ? mCalmWindows + 1 : 0;
+		if (mCalmWindows < mUpWindows || mLevel == 0 || !fitsAbove(p90)) return false;
+		mCalmWindows = 0;
+		mWindowsSinceUp = 0;
+		return step(mLevel - 1, "under budget");
+	}
+
+	boolean fitsAbove (long p90)
+	{ // expected cost of the level above, under the current throttling
+		double ratio = mRatio[mLevel];
+		if (ratio == 0) return true;		// never measured, try it
+		return p90 * ratio < mUpFit * mBudgetNanos;
+	}
+
+	private boolean step (int to, String reason)
+	{
+		Adjustment a = mAdjustments[mAdjustmentCount % ADJUSTMENTS];
+		if (a == null) a = mAdjustments[mAdjustmentCount % ADJUSTMENTS] = new Adjustment();
+		a.frame = mFrames;
+		a.from = mLevel;
+		a.to = to;
+		a.p90Micros = mLastP90 / 1000;
+		a.dropRatio = mLastDropRatio;
+		a.temperature = mTemperature;
+		a.reason = reason;
+		mAdjustmentCount++;
+		mStepFrom = mLevel;
+		mLevel = to;
+		mCalmWindows = 0;
+		mSettle = SETTLE;
+		return true;
+	}
+
+	public String summary ()
+	{ // one line for an overlay
+		return String.format("rate: level %d/%d  p90 %.2f ms of %.2f  dropped %.0f%%", mLevel, mLevels.length - 1,
+				mLastP90 / 1e6, mBudgetNanos / 1e6, 100 * mLastDropRatio);
+	}
+
+	public void dump (Writer out) throws IOException
+	{ // the levels and the adjustments so far
+		out.write(String.format("rate control: budget %.2f ms, now at level %d after %d frames\n", mBudgetNanos / 1e6, mLevel, mFrames));
+		for (int k = 0; k < mLevels.length; k++)
+			out.write(String.format("  level %d: %-45s last p90 %7.2f ms\n", k, mLevels[k], mCost[k] / 1e6));
+		out.write(mAdjustmentCount + " adjustments\n");
+		for (int k = Math.max(0, mAdjustmentCount - ADJUSTMENTS); k < mAdjustmentCount; k++)
+			out.write("  " + mAdjustments[k % ADJUSTMENTS] + "\n");
+		out.flush();
+	}
+}
@@ -0,0 +1,115 @@
+// Lightweight per-stage latency instrumentation for the TTC pipeline.
+// Each stage keeps a fixed-bucket log-linear ("HDR-style") histogram of span durations,
+// so recording a span is a couple of integer operations and never allocates.
+
+package com.example.viewfinder;
+
+import java.io.IOException;
+import java.io.Writer;
+
+public class StageTimer
+{
+	public static final int CAPTURE = 0;	// preview callback -> start of onDraw (hand-off latency)
+	public static final int COPY = 1;		// copy of YUV data out of the camera buffer
+	public static final int LUMA = 2;		// luma decode
+	public static final int GRADIENTS = 3;	// E_x, E_y, E_t
+	public static final int SUBSAMPLE = 4;	// block averages
+	public static final int SUMS = 5;		// the least-squares accumulators
+	public static final int SOLVE = 6;		// TTC / FOE solve
+	public static final int DRAW = 7;		// drawing results on the canvas
+	public static final int NSTAGES = 8;
+
+	public static final String[] NAMES = {
+		"capture", "copy", "luma", "gradients", "subsample", "sums", "solve", "draw"
+	};
+
+	// Values are recorded in microseconds. Below 2*SUB_BUCKETS each microsecond has its own bucket,
+	// above that each power of two is split into SUB_BUCKETS buckets (about 6% relative precision).
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_SHIFT = 24;	// top bucket starts around 2^28 us (several minutes)
+	static final int NBUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+	private final int[][] mCounts = new int[NSTAGES][NBUCKETS];
+	private final int[] mTotal = new int[NSTAGES];
+	private final long[] mMaxMicros = new long[NSTAGES];
+
+	public void record (int stage, long nanos)
+	{ // add one span to the histogram of a stage --- no allocation
+		long micros = nanos / 1000;
+		if (micros < 0) micros = 0;
+		mCounts[stage][bucketIndex(micros)]++;
+		mTotal[stage]++;
+		if (micros > mMaxMicros[stage]) mMaxMicros[stage] = micros;
+	}
+
+	public void reset ()
+	{
+		for (int s = 0; s < NSTAGES; s++) {
+			for (int k = 0; k < NBUCKETS; k++) mCounts[s][k] = 0;
+			mTotal[s] = 0;
+			mMaxMicros[s] = 0;
+		}
+	}
+
+	public void add (StageTimer other)
+	{ // merge another timer's histograms into this one (e.g. one timer per worker thread)
+		for (int s = 0; s < NSTAGES; s++) {
+			for (int k = 0; k < NBUCKETS; k++) mCounts[s][k] += other.mCounts[s][k];
+			mTotal[s] += other.mTotal[s];
+			mMaxMicros[s] = Math.max(mMaxMicros[s], other.mMaxMicros[s]);
+		}
+	}
+
+	public int count (int stage)
+	{
+		return mTotal[stage];
+	}
+
+	public long percentileMicros (int stage, double percentile)
+	{ // upper edge of the bucket holding the given percentile (0..100), or 0 if no data yet
+		int total = mTotal[stage];
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(percentile / 100.0 * total);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		int[] counts = mCounts[stage];
+		for (int k = 0; k < NBUCKETS; k++) {
+			seen += counts[k];
+			if (seen >= rank) return Math.min(bucketUpperMicros(k), mMaxMicros[stage]);
+		}
+		return mMaxMicros[stage];
+	}
+
+	public long maxMicros (int stage)
+	{
+		return mMaxMicros[stage];
+	}
+
+	public void dump (Writer out) throws IOException
+	{ // write a plain-text table of the per-stage percentiles (in ms)
+		out.write("stage        count    p50(ms)    p90(ms)    p99(ms)    max(ms)\n");
+		for (int s = 0; s < NSTAGES; s++) {
+			out.write(String.format("%-10s %7d %10.3f %10.3f %10.3f %10.3f\n", NAMES[s], mTotal[s],
+					percentileMicros(s, 50) / 1000.0, percentileMicros(s, 90) / 1000.0,
+					percentileMicros(s, 99) / 1000.0, mMaxMicros[s] / 1000.0));
+		}
+		out.flush();
+	}
+
+	static int bucketIndex (long micros)
+	{
+		if (micros < 2 * SUB_BUCKETS) return (int) micros;
+		int msb = 63 - Long.numberOfLeadingZeros(micros);
+		int shift = msb - SUB_BITS;
+		if (shift > MAX_SHIFT) return NBUCKETS - 1;	// clamp into the top bucket
+		return shift * SUB_BUCKETS + (int) (micros >>> shift);
+	}
+
+	static long bucketUpperMicros (int index)
+	{ // largest value that maps to this bucket
+		int shift = Math.max(0, index / SUB_BUCKETS - 1);
+		long top = index - shift * SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+}
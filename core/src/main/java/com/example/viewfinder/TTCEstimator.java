@@ -0,0 +1,673 @@
+// Time-to-contact estimator: luma decode -> gradients -> subsample -> sums -> solve
+// Pure Java (no Android dependencies), fed with NV21 (YUV420SP) preview frames.
+//
+// Only the current frame is kept at full resolution. Each frame is reduced to block sums
+// (4x4 unless another subsample factor is given) of luma, E_x and E_y, and E_t comes from a TemporalStencil over the last few of those.
+// With FOE tracking on (FoeTracker) the coordinate system follows the focus of expansion and
+// only a window of blocks around it is decoded, reduced and summed.
+//
+// Two interchangeable pipelines:
+//	float       - brightness as float (y/255) (the original implementation)
+//	fixed point - luma stays in bytes, block sums are ints and the accumulators are longs;
+//	              conversion to floating point happens only in the solve
+
+package com.example.viewfinder;
+
+public class TTCEstimator
+{
+	public static final int BLOCK = 4;		// default subsample factor (block size in pixels)
+
+	// Fixed point scaling: a block value is twice the sum over the 4x4 block (in luma units,
+	// 0..239) of the stencil's E_x, E_y or E_t, see TemporalStencil.combineFixedPoint. The float
+	// pipeline averages over the block and divides by 255, so float = int / S_UNIT.
+	static final int S_UNIT = 2 * BLOCK * BLOCK * 255;
+	// |E_x|, |E_y| <= 32 * 239 = 7648 and |x|, |y| <= 80, so |G| < 1.1e6 and G^2 < 1.2e12.
+	// |E_t| <= 32 * 239 * 18 / 12 = 11472 (5-tap stencil). With illumination compensation each
+	// frame is scaled by a gain of up to 2 about its own mean, so |E_t| can be twice that, and
+	// the 2-tap gradients up to 1.5 times |E_x|, |E_y| above.
+	// Terms that multiply G^2 (or G * E_t) by pixel coordinates are pre-shifted so that a sum
+	// over the whole 120 x 160 grid stays well inside a long even for worst-case input.
+	// Other block sizes scale the unit with the block area (mUnit). Block values grow with the
+	// area and coordinates shrink with the side, so the worst-case G^2 x^2 sum over a frame goes
+	// as 1 / block^2: four times larger for 2x2 blocks, still far from overflow at 640 x 480.
+	// For 8x8 blocks a compensated |E_t| reaches 128 * 239 * 18 / 12 * 2 = 91776, whose square
+	// (8.4e9) does not fit an int, so all products of block values are taken in longs (here and
+	// in IncrementalSums).
+	static final int SHIFT_G_ET = 4;		// for sum_g_x_et, sum_g_y_et
+	static final int SHIFT_GG = 8;			// for sum_g_squared_x*, sum_g_squared_y*
+
+	final int mWidth, mHeight;		// preview image size (columns, rows)
+	final int mBlock;				// subsample factor: 2, 4 or 8
+	final int mUnit;				// fixed point unit for this block size (S_UNIT for 4)
+	final int mSubRows, mSubCols;	// size of subsampled grid
+	int x_offset, y_offset;			// origin of the coordinate system on the subsampled grid
+	boolean mFixedPoint = false;	// which pipeline to run
+	int mTaps = 3;					// temporal stencil: 2, 3 or 5 frames
+	boolean mCompensate = false;		// undo global illumination (gain / offset) changes in E_t
+	int frame = 0;					// number of frames processed
+	StageTimer mTimer;				// optional stage instrumentation
+	TemporalStencil mStencil;		// block sums of the last mTaps frames
+	FoeTracker mTracker;			// FOE tracking window (null: whole grid, fixed origin)
+	final FoeTracker.Window mFull = new FoeTracker.Window();
+
+	// float pipeline: flat row-major plane, pixel (a, b) is at index a * mWidth + b
+	float[] brightness;				// E
+	float[] subE_x;					// subsampled grid, block (a, b) is at index a * mSubCols + b
+	float[] subE_y;
+	float[] subE_t;
+	float[] mColSumL, mColSumX;		// one row of column sums for the block step
+
+	// fixed point pipeline
+	byte[] mLuma;					// y - 16, clamped to 0..239 (read as unsigned)
+	int[] mSubX, mSubY, mSubT;		// block values from the stencil (units of 1 / mUnit)
+	int[] mColL, mColX;				// one row of column sums for the block step
+
+	IncrementalSums mIncremental;	// running sums that only re-accumulate changed blocks (null: off)
+	final long[] mAcc = new long[TTCSums.NTERMS];	// fixed point accumulators
+	final TTCSums mSums = new TTCSums();
+	final ModelSelector mSelector = new ModelSelector();
+	final TTCResult mResult = new TTCResult();
+	final LumaStats mStats = new LumaStats();	// gathered during the luma decode
+
+	public TTCEstimator (int width, int height)
+	{
+		this(width, height, BLOCK);
+	}
+
+	public TTCEstimator (int width, int height, int block)
+	{ // coordinates, x_0, y_0 and the TTC of the results are in units of blocks of this size
+		if (block != 2 && block != 4 && block != 8) throw new IllegalArgumentException("block " + block);
+		mWidth = width;
+		mHeight = height;
+		mBlock = block;
+		mUnit = 2 * block * block * 255;
+		mSubRows = height / block;
+		mSubCols = width / block;
+		x_offset = mSubRows / 2;	// 60 for 640 x 480
+		y_offset = mSubCols / 2;	// 80 for 640 x 480
+		mFull.set(0, mSubRows, 0, mSubCols);
+	}
+
+	public int getWidth ()
+	{
+		return mWidth;
+	}
+
+	public int getHeight ()
+	{
+		return mHeight;
+	}
+
+	public int getBlock ()
+	{
+		return mBlock;
+	}
+
+	public void setTimer (StageTimer timer)
+	{
+		mTimer = timer;
+	}
+
+	public void setFixedPoint (boolean fixedPoint)
+	{ // switching pipelines restarts the frame history
+		if (fixedPoint != mFixedPoint) restart();
+		mFixedPoint = fixedPoint;
+	}
+
+	public void setTemporalTaps (int taps)
+	{ // 2, 3 or 5 frame stencil for E_t, a change restarts the frame history
+		if (taps != 2 && taps != 3 && taps != 5) throw new IllegalArgumentException("taps " + taps);
+		if (taps != mTaps) {
+			restart();
+			mStencil = null;	// another ring size
+		}
+		mTaps = taps;
+	}
+
+	public int getTemporalTaps ()
+	{
+		return mTaps;
+	}
+
+	public void setIlluminationCompensation (boolean compensate)
+	{
+		mCompensate = compensate;
+	}
+
+	public boolean getIlluminationCompensation ()
+	{
+		return mCompensate;
+	}
+
+	public double illuminationGain ()
+	{ // gain between the last two frames that was taken out of E_t (1 if not compensating)
+		return (mStencil == null) ? 1 : mStencil.lastGain();
+	}
+
+	public void restart ()
+	{ // forget the frame history (e.g. after a pause: the next frame is no neighbour of the last)
+	  // but keep the buffers
+		frame = 0;
+		if (mStencil != null) mStencil.reset();
+		mStats.restart();
+		if (mIncremental != null) mIncremental.invalidate();
+		if (mTracker != null) mTracker.restart();
+	}
+
+	public void setFoeTracking (boolean tracking)
+	{ // center on the tracked FOE and process only a window around it (see FoeTracker)
+		if (tracking && mTracker == null) {
+			mTracker = new FoeTracker(mSubRows, mSubCols);
+		} else if (!tracking && mTracker != null) {
+			mTracker = null;
+			x_offset = mSubRows / 2;
+			y_offset = mSubCols / 2;
+			restart();		// blocks outside the last window have no history
+		}
+	}
+
+	public FoeTracker getFoeTracker ()
+	{
+		return mTracker;
+	}
+
+	public void setIncremental (boolean incremental)
+	{
+		if (incremental && mIncremental == null) mIncremental = new IncrementalSums(mSubRows * mSubCols, mUnit);
+		else if (!incremental) mIncremental = null;
+	}
+
+	public IncrementalSums getIncremental ()
+	{
+		return mIncremental;
+	}
+
+	public boolean isFixedPoint ()
+	{
+		return mFixedPoint;
+	}
+
+	public TTCSums getSums ()
+	{
+		return mSums;
+	}
+
+	public ModelSelector getSelector ()
+	{
+		return mSelector;
+	}
+
+	public TTCResult processFrame (byte[] yuv420sp)
+	{ // run the whole pipeline on one NV21 frame, results are valid until the next call
+		if (mStencil == null) mStencil = new TemporalStencil(mTaps, mSubRows * mSubCols, mBlock * mBlock);
+		mStencil.setCompensation(mCompensate);
+		frame += 1;
+		FoeTracker.Window window = mFull, valid = mFull;
+		if (mTracker != null) {
+			mTracker.begin(mTaps);
+			x_offset = mTracker.originRow();
+			y_offset = mTracker.originCol();
+			window = mTracker.window();
+			valid = mTracker.validWindow();
+		}
+		if (mFixedPoint) processFixedPoint(yuv420sp, window, valid);
+		else processFloat(yuv420sp, window, valid);
+		long tSums = System.nanoTime();
+		mSums.n = valid.blocks();
+		mSelector.solve(mSums, mResult);
+		mResult.originRow = x_offset;
+		mResult.originCol = y_offset;
+		mResult.blocks = mSums.n;
+		if (mTracker != null) mTracker.update(mResult, x_offset, y_offset);
+		record(StageTimer.SOLVE, tSums);
+		return mResult;
+	}
+
+	public LumaStats getStats ()
+	{
+		return mStats;
+	}
+
+	private void record (int stage, long tStart)
+	{
+		if (mTimer != null) mTimer.record(stage, System.nanoTime() - tStart);
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	private void allocateFloat ()
+	{ // the whole float working set, allocated once
+		int nBlocks = mSubRows * mSubCols;
+		brightness = new float[mWidth * mHeight];
+		subE_x = new float[nBlocks];
+		subE_y = new float[nBlocks];
+		subE_t = new float[nBlocks];
+		mColSumL = new float[mWidth];
+		mColSumX = new float[mWidth];
+	}
+
+	private void processFloat (byte[] yuv420sp, FoeTracker.Window window, FoeTracker.Window valid)
+	{ // blocks in window are brought up to date, E_t and the sums only cover the valid ones
+		if (brightness == null) allocateFloat();
+		mStencil.allocateFloat();
+		long tStart = System.nanoTime();
+		if (window == mFull) decodeBrightness(brightness, yuv420sp, mWidth * mHeight, mStats);
+		else {
+			decodeBrightness(brightness, yuv420sp, mWidth, window.rowFrom * mBlock, pixelEnd(window.rowTo, mHeight),
+					window.colFrom * mBlock, pixelEnd(window.colTo, mWidth));
+			sampleLuma(yuv420sp, mWidth * mHeight, mStats);
+		}
+		long tLuma = System.nanoTime();
+		record(StageTimer.LUMA, tStart);
+
+		// gradients are never stored at full resolution, they go straight into block sums
+		// (so the GRADIENTS span also covers most of the subsample stage)
+		int slot = mStencil.push(mStats.mean() / 255, mStats.stdDev() / 255);
+		floatBlockSums(brightness, mWidth, mHeight, mBlock, mColSumL, mColSumX,
+				mStencil.mLuma[slot], mStencil.mGradX[slot], mStencil.mGradY[slot],
+				window.rowFrom, window.rowTo, window.colFrom, window.colTo);
+		long tGradients = System.nanoTime();
+		record(StageTimer.GRADIENTS, tLuma);
+
+		mStencil.combine(subE_x, subE_y, subE_t, mSubCols, valid);
+		float avgE_t = 0;
+		float maxE_t = 0;
+		for (int a = valid.rowFrom; a < valid.rowTo; a++) {
+			for (int k = a * mSubCols + valid.colFrom, end = k + valid.cols(); k < end; k++) {
+				avgE_t += subE_t[k];
+				maxE_t = Math.max(Math.abs(subE_t[k]), maxE_t);
+			}
+		}
+		avgE_t /= valid.blocks();
+		mResult.avgE_t = avgE_t;
+		mResult.maxE_t = maxE_t;
+		long tSubsample = System.nanoTime();
+		record(StageTimer.SUBSAMPLE, tGradients);
+
+		if (mIncremental != null && mTracker == null) {	// the running sums assume a fixed origin and grid
+			if (frame <= mTaps) mIncremental.invalidate();	// block values still change without any E_t
+			mIncremental.update(subE_x, subE_y, subE_t, mSubCols, x_offset, y_offset, mSums);
+			record(StageTimer.SUMS, tSubsample);
+			return;
+		}
+
+		floatSums(subE_x, subE_y, subE_t, mSubCols, valid.rowFrom, valid.rowTo, valid.colFrom, valid.colTo,
+				x_offset, y_offset, mSums);
+		record(StageTimer.SUMS, tSubsample);
+	}
+
+	int pixelEnd (int blockEnd, int size)
+	{ // pixels needed for blocks up to blockEnd: one more row (column) for the last E_x (E_y)
+		return Math.min(blockEnd * mBlock + 1, size);
+	}
+
+	static void floatSums (float[] sx, float[] sy, float[] st, int subRows, int subCols,
+						   int x_offset, int y_offset, TTCSums s)
+	{ // the least-squares sums over a subsampled grid of block values
+		floatSums(sx, sy, st, subCols, 0, subRows, 0, subCols, x_offset, y_offset, s);
+	}
+
+	static void floatSums (float[] sx, float[] sy, float[] st, int subCols,
+						   int rowFrom, int rowTo, int colFrom, int colTo,
+						   int x_offset, int y_offset, TTCSums s)
+	{ // same, over the blocks of rows [rowFrom, rowTo) and columns [colFrom, colTo)
+		//compute summations
+		float sum_g_squared = 0;
+		float sum_ex_ey = 0;
+		float sum_g_ex = 0;
+		float sum_g_ey = 0;
+		float sum_g_et = 0;
+		float sum_ex_squared = 0;
+		float sum_ey_squared = 0;
+		float sum_ey_et = 0;
+		float sum_ex_et = 0;
+		float sum_g_squared_x_y = 0;
+		float sum_g_x_et = 0;
+		float sum_g_y_et = 0;
+		float sum_g_squared_x = 0;
+		float sum_g_squared_y = 0;
+		float sum_g_squared_x_squared = 0;
+		float sum_g_squared_y_squared = 0;
+		float sum_et_squared = 0;
+		for (int a=rowFrom; a < rowTo; a++){
+			final float x = a - x_offset;
+			int k = a * subCols + colFrom;
+			for (int b=colFrom; b < colTo; b++, k++){
+				final float y = b - y_offset;
+				final float ex = sx[k], ey = sy[k], et = st[k];
+				float G = x * ex + y * ey;
+				float GG = G * G;
+				sum_g_squared += GG;
+				sum_ex_ey += ex * ey;
+				sum_g_ex += G * ex;
+				sum_g_ey += G * ey;
+				sum_g_et += G * et;
+				sum_ex_squared += ex * ex;
+				sum_ey_squared += ey * ey;
+				sum_ey_et += ey * et;
+				sum_ex_et += ex * et;
+				sum_g_squared_x_y += GG * x * y;
+				sum_g_x_et += G * x * et;
+				sum_g_y_et += G * y * et;
+				sum_g_squared_x += GG * x;
+				sum_g_squared_y += GG * y;
+				sum_g_squared_x_squared += GG * x * x;
+				sum_g_squared_y_squared += GG * y * y;
+				sum_et_squared += et * et;
+			}
+		}
+		s.sum_g_squared = sum_g_squared;
+		s.sum_ex_ey = sum_ex_ey;
+		s.sum_g_ex = sum_g_ex;
+		s.sum_g_ey = sum_g_ey;
+		s.sum_g_et = sum_g_et;
+		s.sum_ex_squared = sum_ex_squared;
+		s.sum_ey_squared = sum_ey_squared;
+		s.sum_ey_et = sum_ey_et;
+		s.sum_ex_et = sum_ex_et;
+		s.sum_g_squared_x_y = sum_g_squared_x_y;
+		s.sum_g_x_et = sum_g_x_et;
+		s.sum_g_y_et = sum_g_y_et;
+		s.sum_g_squared_x = sum_g_squared_x;
+		s.sum_g_squared_y = sum_g_squared_y;
+		s.sum_g_squared_x_squared = sum_g_squared_x_squared;
+		s.sum_g_squared_y_squared = sum_g_squared_y_squared;
+		s.sum_et_squared = sum_et_squared;
+	}
+
+	static void floatBlockSums (float[] e, int width, int height, int block, float[] cl, float[] cx,
+								float[] blockL, float[] blockX, float[] blockY)
+	{ // block x block sums of E, E_x and E_y. Differences telescope within a block, so the E_x sum of
+	  // a column is its top value minus the value just below the block (E_x is 0 on the last row)
+	  // and the E_y sum of a row is its first value minus the value just right of the block.
+	  // cl, cx are scratch rows of (at least) width columns.
+		floatBlockSums(e, width, height, block, cl, cx, blockL, blockX, blockY, 0, height / block, 0, width / block);
+	}
+
+	static void floatBlockSums (float[] e, int width, int height, int block, float[] cl, float[] cx,
+								float[] blockL, float[] blockX, float[] blockY,
+								int rowFrom, int rowTo, int colFrom, int colTo)
+	{ // same, for the blocks of rows [rowFrom, rowTo) and columns [colFrom, colTo) only
+		final int w = width;
+		final int lastRow = height - 1;
+		final int subCols = width / block;
+		final int c0 = colFrom * block, c1 = Math.min(colTo * block + 1, w);	// columns used
+		for (int a = rowFrom; a < rowTo; a++) {
+			// first add up the block's rows column by column (contiguous, vectorizable)
+			int row = a * block * w;
+			final int below = Math.min((a + 1) * block, lastRow) * w;
+			for (int c = c0; c < c1; c++) {
+				cl[c] = e[row + c];
+				cx[c] = e[row + c] - e[below + c];
+			}
+			for (int r = 1; r < block; r++) {
+				row += w;
+				for (int c = c0; c < c1; c++) cl[c] += e[row + c];
+			}
+			// then across the columns of each block
+			int k = a * subCols + colFrom;
+			for (int b = colFrom, c = c0; b < colTo; b++, k++) {
+				final int right = Math.min(c + block, w - 1);	// E_y is 0 in the last column
+				blockY[k] = cl[c] - cl[right];
+				float lSum = 0, xSum = 0;
+				for (int end = c + block; c < end; c++) {
+					lSum += cl[c];
+					xSum += cx[c];
+				}
+				blockL[k] = lSum;
+				blockX[k] = xSum;
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	private void allocateFixedPoint ()
+	{
+		int nBlocks = mSubRows * mSubCols;
+		mLuma = new byte[mWidth * mHeight];
+		mSubX = new int[nBlocks];
+		mSubY = new int[nBlocks];
+		mSubT = new int[nBlocks];
+		mColL = new int[mWidth];
+		mColX = new int[mWidth];
+	}
+
+	private void processFixedPoint (byte[] yuv420sp, FoeTracker.Window window, FoeTracker.Window valid)
+	{ // same split of the grid as processFloat
+		if (mLuma == null) allocateFixedPoint();
+		mStencil.allocateFixedPoint();
+		long tStart = System.nanoTime();
+		if (window == mFull) decodeLuma(mLuma, yuv420sp, mWidth * mHeight, mStats);
+		else {
+			decodeLuma(mLuma, yuv420sp, mWidth, window.rowFrom * mBlock, pixelEnd(window.rowTo, mHeight),
+					window.colFrom * mBlock, pixelEnd(window.colTo, mWidth));
+			sampleLuma(yuv420sp, mWidth * mHeight, mStats);
+		}
+		long tLuma = System.nanoTime();
+		record(StageTimer.LUMA, tStart);
+
+		// gradients are never stored at full resolution, they go straight into block sums
+		// (so the GRADIENTS span also covers the subsample stage)
+		int slot = mStencil.push(mStats.mean(), mStats.stdDev());
+		blockSums(mLuma, mStencil.mLumaFixed[slot], mStencil.mGradXFixed[slot], mStencil.mGradYFixed[slot], window);
+		mStencil.combineFixedPoint(mSubX, mSubY, mSubT, mSubCols, valid);
+		long tGradients = System.nanoTime();
+		record(StageTimer.GRADIENTS, tLuma);
+
+		if (mIncremental != null && mTracker == null) {
+			if (frame <= mTaps) mIncremental.invalidate();	// block values still change without any E_t
+			mIncremental.updateFixedPoint(mSubX, mSubY, mSubT, mSubCols, x_offset, y_offset, mSums);
+			long tSum = 0;
+			int maxT = 0;
+			for (int k = 0; k < mSubT.length; k++) {
+				int et = mSubT[k];
+				tSum += et;
+				maxT = Math.max(maxT, Math.abs(et));
+			}
+			mResult.avgE_t = (float) ((double) tSum / (mSubRows * mSubCols) / mUnit);
+			mResult.maxE_t = (float) maxT / mUnit;
+			record(StageTimer.SUMS, tGradients);
+			return;
+		}
+
+		long sGG = 0, sXY = 0, sGX = 0, sGY = 0, sGT = 0, sXX = 0, sYY = 0, sYT = 0, sXT = 0;
+		long sGGxy = 0, sGxT = 0, sGyT = 0, sGGx = 0, sGGy = 0, sGGxx = 0, sGGyy = 0, sTT = 0;
+		long tSum = 0;
+		int maxT = 0;
+		for (int a = valid.rowFrom; a < valid.rowTo; a++) {
+			int x = a - x_offset;
+			int k = a * mSubCols + valid.colFrom;
+			for (int b = valid.colFrom; b < valid.colTo; b++, k++) {
+				int y = b - y_offset;
+				int ex = mSubX[k];
+				int ey = mSubY[k];
+				int et = mSubT[k];
+				long G = (long) x * ex + (long) y * ey;
+				long GG = G * G;
+				long GGs = GG >> SHIFT_GG;
+				long GTs = (G * et) >> SHIFT_G_ET;
+				sGG += GG;
+				sXY += (long) ex * ey;
+				sGX += G * ex;
+				sGY += G * ey;
+				sGT += G * et;
+				sXX += (long) ex * ex;
+				sYY += (long) ey * ey;
+				sYT += (long) ey * et;
+				sXT += (long) ex * et;
+				sGGxy += GGs * (x * y);
+				sGxT += GTs * x;
+				sGyT += GTs * y;
+				sGGx += GGs * x;
+				sGGy += GGs * y;
+				sGGxx += GGs * (x * x);
+				sGGyy += GGs * (y * y);
+				sTT += (long) et * et;
+				tSum += et;
+				int absT = et < 0 ? -et : et;
+				if (absT > maxT) maxT = absT;
+			}
+		}
+
+		long[] acc = mAcc;
+		acc[0] = sGG; acc[1] = sXY; acc[2] = sGX; acc[3] = sGY;
+		acc[4] = sGT; acc[5] = sXX; acc[6] = sYY; acc[7] = sYT;
+		acc[8] = sXT; acc[9] = sGGxy; acc[10] = sGxT; acc[11] = sGyT;
+		acc[12] = sGGx; acc[13] = sGGy; acc[14] = sGGxx; acc[15] = sGGyy;
+		acc[16] = sTT;
+		fixedPointToSums(acc, mUnit, mSums);
+		mResult.avgE_t = (float) ((double) tSum / valid.blocks() / mUnit);
+		mResult.maxE_t = (float) maxT / mUnit;
+		record(StageTimer.SUMS, tGradients);
+	}
+
+	static void fixedPointToSums (long[] acc, int unit, TTCSums s)
+	{ // only now convert to floating point
+		double unit2 = 1.0 / ((double) unit * unit);
+		s.setFixedPoint(acc, unit2, unit2 * (1 << SHIFT_G_ET), unit2 * (1 << SHIFT_GG));
+	}
+
+	void blockSums (byte[] luma, int[] blockL, int[] blockX, int[] blockY, FoeTracker.Window window)
+	{ // block sums of luma, E_x and E_y computed directly from the luma bytes, for the blocks
+	  // in window (telescoped the same way as floatBlockSums, exact in integers)
+		final int w = mWidth;
+		final int lastRow = mHeight - 1;
+		final int[] cl = mColL, cx = mColX;
+		final int block = mBlock;
+		final int c0 = window.colFrom * block, c1 = pixelEnd(window.colTo, w);
+		for (int a = window.rowFrom; a < window.rowTo; a++) {
+			int row = a * block * w;
+			final int below = Math.min((a + 1) * block, lastRow) * w;
+			for (int c = c0; c < c1; c++) {
+				int e = luma[row + c] & 0xFF;
+				cl[c] = e;
+				cx[c] = e - (luma[below + c] & 0xFF);
+			}
+			for (int r = 1; r < block; r++) {
+				row += w;
+				for (int c = c0; c < c1; c++) cl[c] += luma[row + c] & 0xFF;
+			}
+			int k = a * mSubCols + window.colFrom;
+			for (int b = window.colFrom, c = c0; b < window.colTo; b++, k++) {
+				final int right = Math.min(c + block, w - 1);
+				blockY[k] = cl[c] - cl[right];
+				int sl = 0, sx = 0;
+				for (int end = c + block; c < end; c++) {
+					sl += cl[c];
+					sx += cx[c];
+				}
+				blockL[k] = sl;
+				blockX[k] = sx;
+			}
+		}
+	}
+
+	static final int DECODE_SEGMENT = 2048;	// pixels decoded before their statistics are taken
+
+	static void decodeLuma (byte[] luma, byte[] yuv420sp, int frameSize, LumaStats stats)
+	{ // same as decodeYUV420SPGrayscale but kept as bytes: y - 16 clamped to 0..239
+	  // Every stats.mStride-th pixel also goes into the statistics. This is done per segment,
+	  // right after the segment is decoded and still in cache (so it is still a single pass),
+	  // which keeps the decode loop itself simple enough to vectorize.
+		final int[] histogram = stats.begin();
+		final int stride = stats.mStride;
+		long sum = 0, sumSquared = 0;
+		int next = 0;	// next pixel to sample
+		for (int segment = 0; segment < frameSize; segment += DECODE_SEGMENT) {
+			final int end = Math.min(segment + DECODE_SEGMENT, frameSize);
+			for (int pix = segment; pix < end; pix++) {
+				int y = (0xFF & yuv420sp[pix]) - 16;
+				if (y < 0) y = 0;
+				luma[pix] = (byte) y;
+			}
+			for (; next < end; next += stride) {
+				int y = luma[next] & 0xFF;
+				histogram[y]++;
+				sum += y;
+				sumSquared += y * y;
+			}
+		}
+		stats.end((frameSize + stride - 1) / stride, sum, sumSquared);
+	}
+
+	static void decodeBrightness (float[] brightness, byte[] yuv420sp, int frameSize, LumaStats stats)
+	{ // decodeYUV420SPGrayscale without the rgb output, plus the statistics as in decodeLuma
+		final int[] histogram = stats.begin();
+		final int stride = stats.mStride;
+		long sum = 0, sumSquared = 0;
+		int next = 0;
+		for (int segment = 0; segment < frameSize; segment += DECODE_SEGMENT) {
+			final int end = Math.min(segment + DECODE_SEGMENT, frameSize);
+			for (int pix = segment; pix < end; pix++) {
+				int y = (0xFF & yuv420sp[pix]) - 16;
+				if (y < 0) y = 0;
+				brightness[pix] = (float) y/255;
+			}
+			for (; next < end; next += stride) {
+				int y = (0xFF & yuv420sp[next]) - 16;
+				if (y < 0) y = 0;
+				histogram[y]++;
+				sum += y;
+				sumSquared += y * y;
+			}
+		}
+		stats.end((frameSize + stride - 1) / stride, sum, sumSquared);
+	}
+
+	static void decodeLuma (byte[] luma, byte[] yuv420sp, int width, int rowFrom, int rowTo,
+							int colFrom, int colTo)
+	{ // decodeLuma for the pixels of rows [rowFrom, rowTo) and columns [colFrom, colTo) only,
+	  // without the statistics (see sampleLuma)
+		for (int row = rowFrom; row < rowTo; row++) {
+			for (int pix = row * width + colFrom, end = row * width + colTo; pix < end; pix++) {
+				int y = (0xFF & yuv420sp[pix]) - 16;
+				if (y < 0) y = 0;
+				luma[pix] = (byte) y;
+			}
+		}
+	}
+
+	static void decodeBrightness (float[] brightness, byte[] yuv420sp, int width, int rowFrom, int rowTo,
+								  int colFrom, int colTo)
+	{ // decodeBrightness for a window, as decodeLuma above
+		for (int row = rowFrom; row < rowTo; row++) {
+			for (int pix = row * width + colFrom, end = row * width + colTo; pix < end; pix++) {
+				int y = (0xFF & yuv420sp[pix]) - 16;
+				if (y < 0) y = 0;
+				brightness[pix] = (float) y/255;
+			}
+		}
+	}
+
+	static void sampleLuma (byte[] yuv420sp, int frameSize, LumaStats stats)
+	{ // the statistics of decodeLuma on their own: always the same every stats.mStride-th pixel of
+	  // the whole frame, whatever window was decoded. The illumination compensation compares them
+	  // from frame to frame, so they must not jump when the tracking window moves or resizes.
+		final int[] histogram = stats.begin();
+		final int stride = stats.mStride;
+		long sum = 0, sumSquared = 0;
+		for (int pix = 0; pix < frameSize; pix += stride) {
+			int y = (0xFF & yuv420sp[pix]) - 16;
+			if (y < 0) y = 0;
+			histogram[y]++;
+			sum += y;
+			sumSquared += y * y;
+		}
+		stats.end((frameSize + stride - 1) / stride, sum, sumSquared);
+	}
+
+	public static void decodeYUV420SPGrayscale (int[] rgb, float[] brightness, byte[] yuv420sp, int width, int height)
+	{ // extract grey image; rgb (grey RGB format) may be null if not needed
+		final int frameSize = width * height;
+
+		// This is much simpler since we can ignore the u and v components
+		for (int pix = 0; pix < frameSize; pix++) {
+			int y = (0xFF & ((int) yuv420sp[pix])) - 16;
+			if (y < 0) y = 0;
+			if (y > 0xFF) y = 0xFF;
+			if (rgb != null) rgb[pix] = 0xFF000000 | (y << 16) | (y << 8) | y;
+			brightness[pix] = (float) y/255;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+// Output of one frame of the TTC estimator
+
+package com.example.viewfinder;
+
+public class TTCResult
+{
+	public float ttc1;		// case 1: translation along the optical axis
+	public float ttc2;		// case 2: arbitrary translation (with FOE)
+	public double ttc3;		// case 3: planar (tilted) surface
+	public float x_0, y_0;	// focus of expansion (relative to the origin of the coordinate system)
+	public int originRow, originCol;	// that origin, in blocks on the subsampled grid
+	public int blocks;		// blocks that went into the sums
+	public float avgE_t;	// average block E_t
+	public float maxE_t;	// largest block |E_t|
+
+	// least-squares residual (sum of squared E_t misfit) of each model, NaN if not solved
+	public double residual1, residual2, residual3;
+
+	// the published estimate (see ModelSelector)
+	public float ttc;		// time to contact in frames
+	public int model;		// 1, 2, 3 for the model it came from (0 if none usable)
+	public float confidence;	// 0..1
+
+	public void set (TTCResult r)
+	{
+		ttc1 = r.ttc1;
+		ttc2 = r.ttc2;
+		ttc3 = r.ttc3;
+		x_0 = r.x_0;
+		y_0 = r.y_0;
+		originRow = r.originRow;
+		originCol = r.originCol;
+		blocks = r.blocks;
+		avgE_t = r.avgE_t;
+		maxE_t = r.maxE_t;
+		residual1 = r.residual1;
+		residual2 = r.residual2;
+		residual3 = r.residual3;
+		ttc = r.ttc;
+		model = r.model;
+		confidence = r.confidence;
+	}
+}
@@ -0,0 +1,77 @@
+// Closed-form least-squares solutions for the three TTC models, given the accumulated sums.
+// Each model explains E_t as a linear combination of regressors (with C = 1 / TTC):
+//	case 1:  C G                 + E_t = 0
+//	case 2:  A E_x + B E_y + C G + E_t = 0
+//	case 3:  (C + P x + Q y) G   + E_t = 0
+// The residual of a model (sum of squared misfit) follows from the same sums.
+
+package com.example.viewfinder;
+
+public class TTCSolver
+{
+	public static void solve (TTCSums s, TTCResult r)
+	{
+		solveCase1(s, r);
+		solveCase2(s, r);
+		solveCase3(s, r);
+	}
+
+	public static void solveCase1 (TTCSums s, TTCResult r)
+	{ // translation along the optical axis
+		double ttc = - s.sum_g_squared / s.sum_g_et;
+		double c = 1 / ttc;
+		r.ttc1 = (float) ttc;
+		r.residual1 = s.sum_et_squared + 2 * c * s.sum_g_et + c * c * s.sum_g_squared;
+	}
+
+	public static void solveCase2 (TTCSums s, TTCResult r)
+	{ // arbitrary translation, also gives the FOE
+		double n1_c2 = (-s.sum_g_et*s.sum_ex_ey + s.sum_ey_et*s.sum_g_ex)*(s.sum_ex_squared*s.sum_ey_squared-(s.sum_ex_ey*s.sum_ex_ey));
+		double n2_c2 = (-s.sum_ey_et * s.sum_ex_squared + s.sum_ex_et * s.sum_ex_ey)*(s.sum_g_ey*s.sum_ex_ey - s.sum_ey_squared*s.sum_g_ex);
+		double d1_c2 = (s.sum_g_squared*s.sum_ex_ey - s.sum_g_ey * s.sum_g_ex)*(s.sum_ex_squared*s.sum_ey_squared-(s.sum_ex_ey*s.sum_ex_ey));
+		double d2_c2 = (s.sum_g_ey*s.sum_ex_squared - s.sum_g_ex*s.sum_ex_ey)*(s.sum_g_ey*s.sum_ex_ey - s.sum_ey_squared*s.sum_g_ex);
+		double c2 = (n1_c2-n2_c2)/(d1_c2-d2_c2);
+		double ttc2 = 1/c2;
+
+		double n_b2_1 = -s.sum_ey_et*s.sum_ex_squared + s.sum_ex_et*s.sum_ex_ey - c2*(s.sum_g_ey*s.sum_ex_squared-s.sum_g_ex*s.sum_ex_ey);
+		double d_b2_1 = (s.sum_ex_squared*s.sum_ey_squared-s.sum_ex_ey*s.sum_ex_ey);
+		double b2_1 = n_b2_1/d_b2_1;
+		double a2_1 = (-s.sum_ex_et - b2_1*s.sum_ex_ey - c2*s.sum_g_ex)/s.sum_ex_squared;
+
+		//FOE
+		r.x_0 = (float) (-a2_1 / c2);
+		r.y_0 = (float) (-b2_1 / c2);
+		r.ttc2 = (float) ttc2;
+		r.residual2 = residual(s.sum_et_squared,
+				s.sum_ex_squared, s.sum_ex_ey, s.sum_g_ex, s.sum_ey_squared, s.sum_g_ey, s.sum_g_squared,
+				s.sum_ex_et, s.sum_ey_et, s.sum_g_et, a2_1, b2_1, c2);
+	}
+
+	public static void solveCase3 (TTCSums s, TTCResult r)
+	{ // planar (tilted) surface
+		double numerator1_1 = (-s.sum_g_et*s.sum_g_squared_x_y + s.sum_g_y_et*s.sum_g_squared_x)*(s.sum_g_squared_y_squared*s.sum_g_squared_x_squared-s.sum_g_squared_x_y*s.sum_g_squared_x_y);
+		double numerator1_2 = (-s.sum_g_y_et*s.sum_g_squared_x_squared+s.sum_g_x_et*s.sum_g_squared_x_y)*(s.sum_g_squared_y*s.sum_g_squared_x_y-s.sum_g_squared_y_squared*s.sum_g_squared_x);
+		double denom1_1 = (s.sum_g_squared*s.sum_g_squared_x_y-s.sum_g_squared_y*s.sum_g_squared_x)*(s.sum_g_squared_y_squared*s.sum_g_squared_x_squared - s.sum_g_squared_x_y*s.sum_g_squared_x_y);
+		double denom1_2 = (s.sum_g_squared_y*s.sum_g_squared_x_squared-s.sum_g_squared_x*s.sum_g_squared_x_y)*(s.sum_g_squared_y*s.sum_g_squared_x_y-s.sum_g_squared_y_squared*s.sum_g_squared_x);
+		double c3 = (numerator1_1-numerator1_2)/(denom1_1-denom1_2);
+		r.ttc3 = 1/c3;
+
+		// back substitution for the other two parameters (same pattern as case 2)
+		double n_q = -s.sum_g_y_et*s.sum_g_squared_x_squared + s.sum_g_x_et*s.sum_g_squared_x_y - c3*(s.sum_g_squared_y*s.sum_g_squared_x_squared-s.sum_g_squared_x*s.sum_g_squared_x_y);
+		double d_q = s.sum_g_squared_x_squared*s.sum_g_squared_y_squared - s.sum_g_squared_x_y*s.sum_g_squared_x_y;
+		double q3 = n_q/d_q;
+		double p3 = (-s.sum_g_x_et - q3*s.sum_g_squared_x_y - c3*s.sum_g_squared_x)/s.sum_g_squared_x_squared;
+		r.residual3 = residual(s.sum_et_squared,
+				s.sum_g_squared_x_squared, s.sum_g_squared_x_y, s.sum_g_squared_x, s.sum_g_squared_y_squared, s.sum_g_squared_y, s.sum_g_squared,
+				s.sum_g_x_et, s.sum_g_y_et, s.sum_g_et, p3, q3, c3);
+	}
+
+	static double residual (double sum_et_squared,
+							double m11, double m12, double m13, double m22, double m23, double m33,
+							double b1, double b2, double b3, double p1, double p2, double p3)
+	{ // sum of (p1 u1 + p2 u2 + p3 u3 + E_t)^2 given the (symmetric) sums m_ij of u_i u_j
+	  // and b_i of u_i E_t
+		double quadratic = p1*p1*m11 + p2*p2*m22 + p3*p3*m33 + 2*(p1*p2*m12 + p1*p3*m13 + p2*p3*m23);
+		return sum_et_squared + 2*(p1*b1 + p2*b2 + p3*b3) + quadratic;
+	}
+}
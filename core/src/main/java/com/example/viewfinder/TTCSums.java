@@ -0,0 +1,119 @@
+// The least-squares accumulators shared by the three TTC models (16 for the solutions,
+// plus sum_et_squared for the residuals).
+// Sums run over the subsampled grid with x, y measured from the chosen origin (x_offset, y_offset)
+// and G = x * E_x + y * E_y (the "radial" gradient).
+
+package com.example.viewfinder;
+
+public class TTCSums
+{
+	public double sum_g_squared;
+	public double sum_ex_ey;
+	public double sum_g_ex;
+	public double sum_g_ey;
+	public double sum_g_et;
+	public double sum_ex_squared;
+	public double sum_ey_squared;
+	public double sum_ey_et;
+	public double sum_ex_et;
+	public double sum_g_squared_x_y;
+	public double sum_g_x_et;
+	public double sum_g_y_et;
+	public double sum_g_squared_x;
+	public double sum_g_squared_y;
+	public double sum_g_squared_x_squared;
+	public double sum_g_squared_y_squared;
+	public double sum_et_squared;		// only needed for the model residuals
+	public int n;						// number of cells summed over
+
+	public void clear ()
+	{
+		sum_g_squared = 0;
+		sum_ex_ey = 0;
+		sum_g_ex = 0;
+		sum_g_ey = 0;
+		sum_g_et = 0;
+		sum_ex_squared = 0;
+		sum_ey_squared = 0;
+		sum_ey_et = 0;
+		sum_ex_et = 0;
+		sum_g_squared_x_y = 0;
+		sum_g_x_et = 0;
+		sum_g_y_et = 0;
+		sum_g_squared_x = 0;
+		sum_g_squared_y = 0;
+		sum_g_squared_x_squared = 0;
+		sum_g_squared_y_squared = 0;
+		sum_et_squared = 0;
+		n = 0;
+	}
+
+	public void set (TTCSums s)
+	{
+		sum_g_squared = s.sum_g_squared;
+		sum_ex_ey = s.sum_ex_ey;
+		sum_g_ex = s.sum_g_ex;
+		sum_g_ey = s.sum_g_ey;
+		sum_g_et = s.sum_g_et;
+		sum_ex_squared = s.sum_ex_squared;
+		sum_ey_squared = s.sum_ey_squared;
+		sum_ey_et = s.sum_ey_et;
+		sum_ex_et = s.sum_ex_et;
+		sum_g_squared_x_y = s.sum_g_squared_x_y;
+		sum_g_x_et = s.sum_g_x_et;
+		sum_g_y_et = s.sum_g_y_et;
+		sum_g_squared_x = s.sum_g_squared_x;
+		sum_g_squared_y = s.sum_g_squared_y;
+		sum_g_squared_x_squared = s.sum_g_squared_x_squared;
+		sum_g_squared_y_squared = s.sum_g_squared_y_squared;
+		sum_et_squared = s.sum_et_squared;
+		n = s.n;
+	}
+
+	// When kept in an array (one per block, or as running totals) the sums are stored in the
+	// order they are declared above: sum_g_squared first, sum_et_squared last.
+	public static final int NTERMS = 17;
+
+	public void set (double[] acc)
+	{
+		sum_g_squared = acc[0];
+		sum_ex_ey = acc[1];
+		sum_g_ex = acc[2];
+		sum_g_ey = acc[3];
+		sum_g_et = acc[4];
+		sum_ex_squared = acc[5];
+		sum_ey_squared = acc[6];
+		sum_ey_et = acc[7];
+		sum_ex_et = acc[8];
+		sum_g_squared_x_y = acc[9];
+		sum_g_x_et = acc[10];
+		sum_g_y_et = acc[11];
+		sum_g_squared_x = acc[12];
+		sum_g_squared_y = acc[13];
+		sum_g_squared_x_squared = acc[14];
+		sum_g_squared_y_squared = acc[15];
+		sum_et_squared = acc[16];
+	}
+
+	public void setFixedPoint (long[] acc, double unit, double unitGEt, double unitGG)
+	{ // convert fixed point accumulators: unitGEt applies to sum_g_x_et and sum_g_y_et,
+	  // unitGG to the five coordinate weighted sum_g_squared_* terms, unit to the rest
+		sum_g_squared = acc[0] * unit;
+		sum_ex_ey = acc[1] * unit;
+		sum_g_ex = acc[2] * unit;
+		sum_g_ey = acc[3] * unit;
+		sum_g_et = acc[4] * unit;
+		sum_ex_squared = acc[5] * unit;
+		sum_ey_squared = acc[6] * unit;
+		sum_ey_et = acc[7] * unit;
+		sum_ex_et = acc[8] * unit;
+		sum_g_squared_x_y = acc[9] * unitGG;
+		sum_g_x_et = acc[10] * unitGEt;
+		sum_g_y_et = acc[11] * unitGEt;
+		sum_g_squared_x = acc[12] * unitGG;
+		sum_g_squared_y = acc[13] * unitGG;
+		sum_g_squared_x_squared = acc[14] * unitGG;
+		sum_g_squared_y_squared = acc[15] * unitGG;
+		sum_et_squared = acc[16] * unit;
+	}
+}
@@ -0,0 +1,302 @@
+// Temporal derivative over a small ring of block-level (subsampled) frames.
+// For every frame the ring keeps, per 4x4 block, the sums of luma, E_x and E_y. Because
+// block averaging is linear, the block average of E_t for any temporal stencil is the same
+// stencil applied to the block luma sums, so no full resolution history is needed at all.
+// Slots are rotated by index, never copied.
+//
+// Stencils (n is the newest frame), with the spatial gradients taken at the same instant:
+//	2-tap:  E_t = L(n) - L(n-1)                                    gradients: mean of n and n-1
+//	3-tap:  E_t = (L(n) - L(n-2)) / 2                              gradients: n-1
+//	5-tap:  E_t = (-L(n) + 8 L(n-1) - 8 L(n-3) + L(n-4)) / 12      gradients: n-2
+// The wider central differences stay accurate for larger motion between frames, which is
+// what allows running the camera at a lower frame rate.
+//
+// Illumination compensation: every slot also keeps its frame's luma mean and standard deviation
+// (LumaStats). A global gain / offset change (auto exposure, flicker) is undone by mapping each
+// frame onto the mean and deviation of the frame the gradients are taken from,
+// L' = g (L - mean) + mean(ref). Since the stencil weights add up to zero this only rescales each
+// weight by its frame's gain and subtracts one constant per frame, so it costs nothing per pixel
+// (or per block), and the gradients of the 3- and 5-tap stencils are not touched at all.
+
+package com.example.viewfinder;
+
+public class TemporalStencil
+{
+	static final int WEIGHT_SHIFT = 20;	// fixed point weights are in units of 2^-20
+	static final double MAX_GAIN = 2;	// compensation gains are limited to 1/2 .. 2
+
+	// stencil weights for luma (E_t) and for the gradients, newest frame first
+	static final double[][] LUMA_WEIGHTS = {
+		null, null,
+		{ 1, -1 },
+		{ 0.5, 0, -0.5 },
+		null,
+		{ -1.0 / 12, 8.0 / 12, 0, -8.0 / 12, 1.0 / 12 }
+	};
+	static final double[][] GRADIENT_WEIGHTS = {
+		null, null,
+		{ 0.5, 0.5 },
+		{ 0, 1, 0 },
+		null,
+		{ 0, 0, 1, 0, 0 }
+	};
+
+	final int mTaps;		// 2, 3 or 5 (also the number of slots in the ring)
+	final int mBlocks;
+	final int mBlockPixels;	// pixels per block
+	int mHead = -1;			// slot of the newest frame
+	int mFrames = 0;		// frames pushed so far
+	boolean mCompensate = false;	// undo global gain / offset changes between frames
+
+	// float pipeline: block sums of brightness (0..1), E_x and E_y
+	float[][] mLuma, mGradX, mGradY;
+	// fixed point pipeline: block sums in luma units (0..239)
+	int[][] mLumaFixed, mGradXFixed, mGradYFixed;
+	// per slot luma mean and standard deviation (in the units of the block sums, per pixel)
+	final double[] mMean, mStdDev;
+
+	// weights of the current frame (by age), see weights()
+	final double[] mWeightL, mWeightG;
+	double mOffset;			// per pixel, subtracted from E_t
+	double mGain = 1;		// gain between the two newest frames (1 if not compensating)
+	final long[] mFixedL, mFixedG;			// fixed point weights of the frames that have one
+	final int[][] mRowsL, mRowsX, mRowsY;	// and their block planes
+	int mRunStart, mRunLength, mRunCount, mRunStride;	// blocks to combine, see runs()
+
+	public TemporalStencil (int taps, int nBlocks, int blockPixels)
+	{
+		if (taps != 2 && taps != 3 && taps != 5) throw new IllegalArgumentException("taps " + taps);
+		mTaps = taps;
+		mBlocks = nBlocks;
+		mBlockPixels = blockPixels;
+		mMean = new double[taps];
+		mStdDev = new double[taps];
+		mWeightL = new double[taps];
+		mWeightG = new double[taps];
+		mFixedL = new long[taps];
+		mFixedG = new long[taps];
+		mRowsL = new int[taps][];
+		mRowsX = new int[taps][];
+		mRowsY = new int[taps][];
+	}
+
+	public int taps ()
+	{
+		return mTaps;
+	}
+
+	public double delay ()
+	{ // frames between the newest frame and the instant the derivatives refer to
+		return (mTaps - 1) / 2.0;
+	}
+
+	public boolean isWarm ()
+	{ // true once every slot holds a real frame
+		return mFrames >= mTaps;
+	}
+
+	public void reset ()
+	{ // start over with an empty history, keeping the ring's planes
+		mHead = -1;
+		mFrames = 0;
+		mOffset = 0;
+		mGain = 1;
+	}
+
+	public void setCompensation (boolean compensate)
+	{
+		mCompensate = compensate;
+	}
+
+	public double lastGain ()
+	{ // gain between the two newest frames that was compensated (1 if none)
+		return mGain;
+	}
+
+	private int slot (int age)
+	{ // slot of the frame "age" frames before the newest
+		return (mHead - age + mTaps) % mTaps;
+	}
+
+	public int push ()
+	{ // start a new frame, returns the slot to write its block sums into
+		return push(0, 0);
+	}
+
+	public int push (double mean, double stdDev)
+	{ // same, with the frame's luma statistics for the illumination compensation
+		mHead = (mHead + 1) % mTaps;
+		mFrames++;
+		mMean[mHead] = mean;
+		mStdDev[mHead] = stdDev;
+		return mHead;
+	}
+
+	private void fillHistory (Object[] ring)
+	{ // until the ring is full, the oldest real frame stands in for the missing ones
+		int oldest = slot(mFrames - 1);
+		for (int age = mFrames; age < mTaps; age++) {
+			int s = slot(age);
+			System.arraycopy(ring[oldest], 0, ring[s], 0, mBlocks);
+			mMean[s] = mMean[oldest];
+			mStdDev[s] = mStdDev[oldest];
+		}
+	}
+
+	private void weights ()
+	{ // this frame's weights: the stencil's, with each frame's gain folded in when compensating
+		final double[] wl = LUMA_WEIGHTS[mTaps], wg = GRADIENT_WEIGHTS[mTaps];
+		final double reference = mStdDev[slot(mTaps / 2)];	// the gradients' frame (older one for 2-tap)
+		mOffset = 0;
+		for (int age = 0; age < mTaps; age++) {
+			int s = slot(age);
+			double gain = 1;
+			if (mCompensate && mStdDev[s] > 0 && reference > 0)
+				gain = Math.max(1 / MAX_GAIN, Math.min(MAX_GAIN, reference / mStdDev[s]));
+			mWeightL[age] = wl[age] * gain;
+			mWeightG[age] = wg[age] * gain;
+			if (mCompensate) mOffset += wl[age] * gain * mMean[s];	// sum of wl is 0, so mean(ref) drops out
+		}
+		mGain = (mCompensate && mStdDev[slot(0)] > 0 && mStdDev[slot(1)] > 0) ? mStdDev[slot(0)] / mStdDev[slot(1)] : 1;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	public void allocateFloat ()
+	{
+		if (mLuma != null) return;
+		mLuma = new float[mTaps][mBlocks];
+		mGradX = new float[mTaps][mBlocks];
+		mGradY = new float[mTaps][mBlocks];
+	}
+
+	public void combine (float[] subE_x, float[] subE_y, float[] subE_t)
+	{ // block averages of E_x, E_y and E_t from the newest frames in the ring
+		combine(subE_x, subE_y, subE_t, mBlocks, null);
+	}
+
+	private void runs (int subCols, FoeTracker.Window window)
+	{ // the blocks of a window (on a grid subCols wide) as runs of consecutive indices:
+	  // mRunCount runs of mRunLength, the first at mRunStart and each mRunStride after the one before
+		if (window == null || (window.colFrom == 0 && window.colTo == subCols)) {
+			int r0 = (window == null) ? 0 : window.rowFrom, r1 = (window == null) ? mBlocks / subCols : window.rowTo;
+			mRunStart = r0 * subCols;
+			mRunLength = (r1 - r0) * subCols;	// whole rows: one run
+			mRunCount = 1;
+		} else {
+			mRunStart = window.rowFrom * subCols + window.colFrom;
+			mRunLength = window.cols();
+			mRunCount = window.rows();
+		}
+		mRunStride = subCols;
+	}
+
+	public void combine (float[] subE_x, float[] subE_y, float[] subE_t, int subCols, FoeTracker.Window window)
+	{ // same, for the blocks of window only (all of them if null)
+		if (mFrames < mTaps) {
+			fillHistory(mLuma);
+			fillHistory(mGradX);
+			fillHistory(mGradY);
+		}
+		weights();
+		runs(subCols, window);
+		final float norm = 1.0f / mBlockPixels;
+		final float offset = (float) mOffset;
+		boolean first = true;
+		for (int age = 0; age < mTaps; age++) {	// one vectorizable pass per frame with a weight
+			final float w = (float) mWeightL[age] * norm;
+			if (w == 0) continue;
+			final float[] l = mLuma[slot(age)];
+			for (int run = 0, from = mRunStart; run < mRunCount; run++, from += mRunStride) {
+				final int to = from + mRunLength;
+				if (first) {
+					for (int k = from; k < to; k++) subE_t[k] = w * l[k] - offset;
+				} else {
+					for (int k = from; k < to; k++) subE_t[k] += w * l[k];
+				}
+			}
+			first = false;
+		}
+		first = true;
+		for (int age = 0; age < mTaps; age++) {
+			final float w = (float) mWeightG[age] * norm;
+			if (w == 0) continue;
+			final float[] x = mGradX[slot(age)], y = mGradY[slot(age)];
+			for (int run = 0, from = mRunStart; run < mRunCount; run++, from += mRunStride) {
+				final int to = from + mRunLength;
+				if (first) {
+					for (int k = from; k < to; k++) {
+						subE_x[k] = w * x[k];
+						subE_y[k] = w * y[k];
+					}
+				} else {
+					for (int k = from; k < to; k++) {
+						subE_x[k] += w * x[k];
+						subE_y[k] += w * y[k];
+					}
+				}
+			}
+			first = false;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	public void allocateFixedPoint ()
+	{
+		if (mLumaFixed != null) return;
+		mLumaFixed = new int[mTaps][mBlocks];
+		mGradXFixed = new int[mTaps][mBlocks];
+		mGradYFixed = new int[mTaps][mBlocks];
+	}
+
+	public void combineFixedPoint (int[] subX, int[] subY, int[] subT)
+	{ // same as combine() in fixed point: results are the block averages times 2 * blockPixels
+	  // (in luma units), the scale the fixed point accumulators expect (see TTCEstimator.S_UNIT).
+	  // Weights are 2^WEIGHT_SHIFT fixed point, products are summed in longs and rounded.
+		combineFixedPoint(subX, subY, subT, mBlocks, null);
+	}
+
+	public void combineFixedPoint (int[] subX, int[] subY, int[] subT, int subCols, FoeTracker.Window window)
+	{ // same, for the blocks of window only (all of them if null)
+		if (mFrames < mTaps) {
+			fillHistory(mLumaFixed);
+			fillHistory(mGradXFixed);
+			fillHistory(mGradYFixed);
+		}
+		weights();
+		final double unit = 2 * (1 << WEIGHT_SHIFT);
+		final long round = 1L << (WEIGHT_SHIFT - 1);
+		final long offset = Math.round(mOffset * mBlockPixels * unit) - round;	// rounding folded in
+		final long[] wl = mFixedL, wg = mFixedG;
+		final int[][] l = mRowsL, x = mRowsX, y = mRowsY;
+		int nl = 0, ng = 0;
+		for (int age = 0; age < mTaps; age++) {
+			long w = Math.round(mWeightL[age] * unit);
+			if (w != 0) {
+				wl[nl] = w;
+				l[nl++] = mLumaFixed[slot(age)];
+			}
+			w = Math.round(mWeightG[age] * unit);
+			if (w != 0) {
+				wg[ng] = w;
+				x[ng] = mGradXFixed[slot(age)];
+				y[ng++] = mGradYFixed[slot(age)];
+			}
+		}
+		runs(subCols, window);
+		for (int run = 0, from = mRunStart; run < mRunCount; run++, from += mRunStride) {
+			for (int k = from, to = from + mRunLength; k < to; k++) {
+				long t = -offset, gx = round, gy = round;
+				for (int i = 0; i < nl; i++) t += wl[i] * l[i][k];
+				for (int i = 0; i < ng; i++) {
+					gx += wg[i] * x[i][k];
+					gy += wg[i] * y[i][k];
+				}
+				subT[k] = (int) (t >> WEIGHT_SHIFT);
+				subX[k] = (int) (gx >> WEIGHT_SHIFT);
+				subY[k] = (int) (gy >> WEIGHT_SHIFT);
+			}
+		}
+	}
+}
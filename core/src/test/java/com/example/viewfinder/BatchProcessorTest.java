@@ -0,0 +1,44 @@
+package com.example.viewfinder;
+
+import junit.framework.TestCase;
+
+public class BatchProcessorTest extends TestCase {
+    static final int WIDTH = 160, HEIGHT = 120, FRAMES = 40;
+
+    void compareWithSequential(boolean fixedPoint, int taps) throws Exception {
+        BatchProcessor.SyntheticSource source = new BatchProcessor.SyntheticSource(WIDTH, HEIGHT, FRAMES, 0.01);
+        TTCEstimator estimator = new TTCEstimator(WIDTH, HEIGHT);
+        estimator.setFixedPoint(fixedPoint);
+        estimator.setTemporalTaps(taps);
+        byte[] yuv = new byte[WIDTH * HEIGHT * 3 / 2];
+        TTCResult[] expected = new TTCResult[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            source.read(i, yuv);
+            expected[i] = new TTCResult();
+            expected[i].set(estimator.processFrame(yuv));
+        }
+
+        BatchProcessor batch = new BatchProcessor(WIDTH, HEIGHT);
+        batch.setFixedPoint(fixedPoint);
+        batch.setTemporalTaps(taps);
+        batch.setChunkSize(7);      // chunks do not divide the sequence evenly
+        batch.setParallelism(4);
+        TTCResult[] results = new TTCResult[FRAMES];
+        BatchProcessor.Report report = batch.process(source, results);
+        assertEquals(6, report.chunks);
+        assertEquals(5 * (taps - 1), report.warmUpFrames);
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals("ttc1 frame " + i, expected[i].ttc1, results[i].ttc1, 0);
+            assertEquals("ttc frame " + i, expected[i].ttc, results[i].ttc, 0);
+            assertEquals("avgE_t frame " + i, expected[i].avgE_t, results[i].avgE_t, 0);
+        }
+    }
+
+    public void testFloatChunksMatchSequentialRun() throws Exception {
+        compareWithSequential(false, 3);
+    }
+
+    public void testFixedPointFiveTapChunksMatchSequentialRun() throws Exception {
+        compareWithSequential(true, 5);
+    }
+}
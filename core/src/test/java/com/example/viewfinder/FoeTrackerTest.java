@@ -0,0 +1,120 @@
+package com.example.viewfinder;
+
+import junit.framework.TestCase;
+
+public class FoeTrackerTest extends TestCase {
+    static final int WIDTH = 320, HEIGHT = 240, FRAMES = 90;
+    static final double RATE = 0.004;
+    static final double FOE_ROW = 100, FOE_COL = 200;   // pixels
+
+    // NV21 frame of a textured disc (radius in pixels, 0: the whole frame) magnified by "scale"
+    // about the FOE, in front of a static background
+    static byte[] frame(double scale, double radius) {
+        byte[] yuv = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int r = 0; r < HEIGHT; r++) {
+            for (int c = 0; c < WIDTH; c++) {
+                double u = (c - FOE_COL) / scale, v = (r - FOE_ROW) / scale;
+                double y;
+                if (radius == 0 || u * u + v * v < radius * radius)
+                    y = 128 + 45 * Math.sin(0.07 * u + 0.3) * Math.cos(0.05 * v) + 30 * Math.sin(0.023 * (u + v));
+                else
+                    y = 100 + 40 * Math.sin(0.05 * c) * Math.sin(0.06 * r + 1) + 20 * Math.cos(0.031 * (c - r));
+                yuv[r * WIDTH + c] = (byte) Math.round(y);
+            }
+        }
+        for (int i = WIDTH * HEIGHT; i < yuv.length; i++) yuv[i] = (byte) 128;
+        return yuv;
+    }
+
+    // mean relative TTC error over the frames after the tracker settled
+    static double meanError(TTCEstimator estimator, double radius, long[] blocks) {
+        double sum = 0;
+        int n = 0;
+        for (int t = 0; t < FRAMES; t++) {
+            TTCResult r = estimator.processFrame(frame(1 + RATE * t, radius));
+            if (t < 40) continue;
+            double truth = (1 + RATE * (t - 1)) / RATE;
+            double error = Math.abs(-TTCEstimator.BLOCK * r.ttc - truth) / truth;
+            sum += Double.isNaN(error) ? 1 : error;
+            blocks[0] += r.blocks;
+            n++;
+        }
+        blocks[0] /= n;
+        return sum / n;
+    }
+
+    public void testTracksOffCenterFoe() {
+        for (boolean fixedPoint : new boolean[] { false, true }) {
+            TTCEstimator estimator = new TTCEstimator(WIDTH, HEIGHT);
+            estimator.setFixedPoint(fixedPoint);
+            estimator.setFoeTracking(true);
+            long[] blocks = new long[1];
+            double error = meanError(estimator, 0, blocks);
+            FoeTracker tracker = estimator.getFoeTracker();
+            assertEquals(FOE_ROW / TTCEstimator.BLOCK, tracker.foeRow(), 1.5);
+            assertEquals(FOE_COL / TTCEstimator.BLOCK, tracker.foeCol(), 1.5);
+            assertTrue("window " + tracker.window().blocks(), tracker.window().blocks() < 60 * 80 / 4);
+            assertTrue("blocks " + blocks[0], blocks[0] < 60 * 80 / 2);
+            assertTrue("error " + error, error < 0.05);
+        }
+    }
+
+    public void testTrackingIgnoresBackground() {
+        // an approaching object in front of a static background: the full grid mixes the two
+        TTCEstimator full = new TTCEstimator(WIDTH, HEIGHT);
+        TTCEstimator tracking = new TTCEstimator(WIDTH, HEIGHT);
+        tracking.setFoeTracking(true);
+        long[] fullBlocks = new long[1], trackingBlocks = new long[1];
+        double fullError = meanError(full, 0.3 * HEIGHT, fullBlocks);
+        double trackingError = meanError(tracking, 0.3 * HEIGHT, trackingBlocks);
+        assertTrue("tracking " + trackingError + " full grid " + fullError, trackingError < fullError / 4);
+        assertTrue("blocks " + trackingBlocks[0], trackingBlocks[0] < fullBlocks[0] / 2);
+    }
+
+    public void testIlluminationCompensationWhileTracking() {
+        // the window moves and resizes, and re-acquisition switches to the full grid and back:
+        // none of that may look like a gain / offset change of the frame
+        for (boolean fixedPoint : new boolean[] { false, true }) {
+            TTCEstimator estimator = new TTCEstimator(WIDTH, HEIGHT);
+            estimator.setFixedPoint(fixedPoint);
+            estimator.setFoeTracking(true);
+            estimator.setIlluminationCompensation(true);
+            double worst = 0;
+            for (int t = 0; t < FRAMES; t++) {
+                TTCResult r = estimator.processFrame(frame(1 + RATE * t, 0));
+                if (t < 40) continue;
+                double truth = (1 + RATE * (t - 1)) / RATE;
+                double error = Math.abs(-TTCEstimator.BLOCK * r.ttc - truth) / truth;
+                worst = Math.max(worst, Double.isNaN(error) ? 1 : error);
+                assertEquals("gain at frame " + t, 1, estimator.illuminationGain(), 0.02);
+            }
+            assertTrue("worst error " + worst, worst < 0.1);
+            assertTrue(estimator.getFoeTracker().reacquisitions() > 0);
+        }
+    }
+
+    public void testValidWindowIsInsideTheLastWindows() {
+        FoeTracker tracker = new FoeTracker(60, 80);
+        FoeTracker.Window[] last = new FoeTracker.Window[3];
+        TTCResult r = new TTCResult();
+        r.ttc = -100;
+        r.confidence = 0.9f;
+        for (int frame = 0; frame < 100; frame++) {
+            tracker.begin(3);
+            FoeTracker.Window window = tracker.window(), valid = tracker.validWindow();
+            assertTrue(window.rowFrom >= 0 && window.rowTo <= 60 && window.colFrom >= 0 && window.colTo <= 80);
+            last[frame % 3] = new FoeTracker.Window();
+            last[frame % 3].set(window);
+            for (FoeTracker.Window w : last) {
+                if (w == null) continue;
+                assertTrue(valid.rowFrom >= w.rowFrom && valid.rowTo <= w.rowTo);
+                assertTrue(valid.colFrom >= w.colFrom && valid.colTo <= w.colTo);
+            }
+            // an FOE wandering towards the corner
+            r.x_0 = (float) (10 + 0.4 * frame - tracker.originRow());
+            r.y_0 = (float) (15 + 0.5 * frame - tracker.originCol());
+            tracker.update(r, tracker.originRow(), tracker.originCol());
+        }
+        assertTrue(tracker.reacquisitions() >= 2);
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.viewfinder;
+
+import junit.framework.TestCase;
+
+public class IncrementalSumsTest extends TestCase {
+    static final int WIDTH = 640, HEIGHT = 480;
+
+    // static textured background with a small textured square sliding across it
+    static byte[] movingObjectFrame(int t) {
+        byte[] yuv = LayoutBenchmark.syntheticFrame(WIDTH, HEIGHT, 1);
+        int left = 200 + 3 * t, top = 160 + t;
+        for (int r = top; r < top + 96; r++) {
+            for (int c = left; c < left + 96; c++) {
+                yuv[r * WIDTH + c] = (byte) (90 + 60 * Math.sin(0.2 * (r - top)) * Math.cos(0.15 * (c - left)));
+            }
+        }
+        return yuv;
+    }
+
+    static void assertClose(String what, double expected, double actual, double relTol) {
+        assertEquals(what, expected, actual, Math.abs(expected) * relTol + 1e-9);
+    }
+
+    void compare(boolean fixedPoint, double relTol) {
+        TTCEstimator full = new TTCEstimator(WIDTH, HEIGHT);
+        TTCEstimator incremental = new TTCEstimator(WIDTH, HEIGHT);
+        full.setFixedPoint(fixedPoint);
+        incremental.setFixedPoint(fixedPoint);
+        incremental.setIncremental(true);
+        for (int t = 0; t < 12; t++) {
+            byte[] frame = movingObjectFrame(t);
+            TTCResult f = full.processFrame(frame);
+            TTCResult i = incremental.processFrame(frame);
+            if (t < 3) continue;
+            TTCSums fs = full.getSums(), is = incremental.getSums();
+            assertClose("sum_g_squared", fs.sum_g_squared, is.sum_g_squared, relTol);
+            assertClose("sum_g_et", fs.sum_g_et, is.sum_g_et, relTol);
+            assertClose("sum_g_squared_y_squared", fs.sum_g_squared_y_squared, is.sum_g_squared_y_squared, relTol);
+            assertClose("ttc1", f.ttc1, i.ttc1, relTol * 10);
+            int updated = incremental.getIncremental().updatedBlocks();
+            assertTrue("only blocks near the object are updated: " + updated, updated < WIDTH * HEIGHT / 16 / 10);
+        }
+    }
+
+    public void testIncrementalMatchesFullFloat() {
+        compare(false, 1e-3);
+    }
+
+    public void testIncrementalMatchesFullFixedPoint() {
+        compare(true, 1e-3);
+    }
+
+    public void testFixedPointIsExactWhenEveryBlockUpdates() {
+        TTCEstimator full = new TTCEstimator(WIDTH, HEIGHT);
+        TTCEstimator incremental = new TTCEstimator(WIDTH, HEIGHT);
+        full.setFixedPoint(true);
+        incremental.setFixedPoint(true);
+        incremental.setIncremental(true);
+        incremental.getIncremental().setThreshold(-1);
+        for (int t = 0; t < 6; t++) {
+            byte[] frame = movingObjectFrame(t);
+            full.processFrame(frame);
+            incremental.processFrame(frame);
+            assertEquals("sum_g_et", full.getSums().sum_g_et, incremental.getSums().sum_g_et, 0);
+            assertEquals("sum_g_squared_x_y", full.getSums().sum_g_squared_x_y, incremental.getSums().sum_g_squared_x_y, 0);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.viewfinder;
+
+import junit.framework.TestCase;
+
+public class LumaStatsTest extends TestCase {
+    static final int WIDTH = 64, HEIGHT = 48, N = WIDTH * HEIGHT;
+
+    public void testSinglePassMatchesSeparatePasses() {
+        byte[] yuv = LayoutBenchmark.syntheticFrame(WIDTH, HEIGHT, 0.5);
+        float[] expected = new float[N];
+        TTCEstimator.decodeYUV420SPGrayscale(null, expected, yuv, WIDTH, HEIGHT);
+        for (int stride : new int[] { 1, 3, 7 }) {
+            LumaStats stats = new LumaStats();
+            stats.setStride(stride);
+            float[] brightness = new float[N];
+            TTCEstimator.decodeBrightness(brightness, yuv, N, stats);
+            byte[] luma = new byte[N];
+            LumaStats byteStats = new LumaStats();
+            byteStats.setStride(stride);
+            TTCEstimator.decodeLuma(luma, yuv, N, byteStats);
+
+            double sum = 0, sumSquared = 0;
+            int count = 0;
+            for (int pix = 0; pix < N; pix++) {
+                assertEquals("decode " + pix, expected[pix], brightness[pix], 0);
+                assertEquals("luma " + pix, Math.round(expected[pix] * 255), luma[pix] & 0xFF);
+                if (pix % stride != 0) continue;
+                double y = expected[pix] * 255;
+                sum += y;
+                sumSquared += y * y;
+                count++;
+            }
+            double mean = sum / count;
+            assertEquals(count, stats.count());
+            assertEquals(mean, stats.mean(), 1e-3);
+            assertEquals(sumSquared / count - mean * mean, stats.variance(), 1e-2);
+            assertEquals(stats.mean(), byteStats.mean(), 0);
+            int histogramTotal = 0;
+            for (int n : stats.histogram()) histogramTotal += n;
+            assertEquals(count, histogramTotal);
+        }
+    }
+
+    public void testPreviousMeanIsCarriedForward() {
+        TTCEstimator estimator = new TTCEstimator(WIDTH, HEIGHT);
+        estimator.processFrame(TemporalStencilTest.flatFrame(100));
+        LumaStats stats = estimator.getStats();
+        assertEquals(100, stats.prevMean(), 0);     // first frame compares against itself
+        assertFalse(stats.exposureChanged());
+        estimator.processFrame(TemporalStencilTest.flatFrame(102));
+        assertEquals(100, stats.prevMean(), 0);
+        assertFalse(stats.exposureChanged());
+        estimator.processFrame(TemporalStencilTest.flatFrame(140));
+        assertTrue(stats.exposureChanged());
+        assertEquals(38, stats.meanChange(), 0);
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.viewfinder;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ModelSelectorTest extends TestCase {
+    static final int ROWS = 30, COLS = 40;
+
+    float[] ex = new float[ROWS * COLS], ey = new float[ROWS * COLS], et = new float[ROWS * COLS];
+    TTCSums sums = new TTCSums();
+
+    @Override
+    protected void setUp() {
+        // E_t from looming (C = 0.05) plus a lateral shift and some noise
+        Random random = new Random(1);
+        for (int k = 0; k < ex.length; k++) {
+            int x = k / COLS - ROWS / 2, y = k % COLS - COLS / 2;
+            ex[k] = (float) random.nextGaussian();
+            ey[k] = (float) random.nextGaussian();
+            float G = x * ex[k] + y * ey[k];
+            et[k] = -0.05f * G - 0.3f * ex[k] + (float) (0.1 * random.nextGaussian());
+        }
+        IncrementalSums accumulator = new IncrementalSums(ROWS * COLS);
+        accumulator.update(ex, ey, et, COLS, ROWS / 2, COLS / 2, sums);
+        sums.n = ROWS * COLS;
+    }
+
+    public void testCase1ResidualMatchesDirectSum() {
+        TTCResult r = new TTCResult();
+        TTCSolver.solve(sums, r);
+        double c = 1 / r.ttc1, direct = 0;
+        for (int k = 0; k < ex.length; k++) {
+            int x = k / COLS - ROWS / 2, y = k % COLS - COLS / 2;
+            double misfit = c * (x * ex[k] + y * ey[k]) + et[k];
+            direct += misfit * misfit;
+        }
+        assertEquals(direct, r.residual1, direct * 1e-4);
+    }
+
+    public void testNestedModelsFitAtLeastAsWell() {
+        TTCResult r = new TTCResult();
+        TTCSolver.solve(sums, r);
+        assertTrue(r.residual2 <= r.residual1 * (1 + 1e-6));
+        assertTrue(r.residual3 <= r.residual1 * (1 + 1e-6));
+    }
+
+    public void testLateralMotionSelectsCase2() {
+        TTCResult r = new TTCResult();
+        new ModelSelector().solve(sums, r);
+        assertEquals(2, r.model);
+        assertEquals(20, r.ttc, 1);
+        assertTrue(r.confidence > 0.9);
+    }
+
+    public void testLoomingSkipsExpensiveModels() {
+        TTCEstimator estimator = new TTCEstimator(640, 480);
+        TTCResult r = null;
+        for (int t = 0; t < 5; t++) r = estimator.processFrame(LayoutBenchmark.syntheticFrame(640, 480, 1 + 0.02 * t));
+        assertEquals(1, r.model);
+        assertTrue(Double.isNaN(r.residual2));
+        assertEquals(r.ttc1, r.ttc, 0);
+    }
+}
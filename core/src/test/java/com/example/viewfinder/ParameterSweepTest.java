@@ -0,0 +1,63 @@
+package com.example.viewfinder;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ParameterSweepTest extends TestCase {
+    static final int WIDTH = 160, HEIGHT = 120, FRAMES = 12;
+
+    public void testDefaultCombinationMatchesEstimator() throws Exception {
+        BatchProcessor.SyntheticSource source = new BatchProcessor.SyntheticSource(WIDTH, HEIGHT, FRAMES, 0.01);
+        ParameterSweep sweep = new ParameterSweep(WIDTH, HEIGHT);
+        sweep.setBlockSizes(4, 8);
+        List<ParameterSweep.Row> rows = sweep.run(source, null);
+        assertEquals(2, rows.size());
+        assertEquals(0, rows.get(0).meanError, 0);  // the reference itself
+
+        // block 4 at the image center with a 3-tap stencil is exactly what the estimator computes
+        TTCEstimator estimator = new TTCEstimator(WIDTH, HEIGHT);
+        byte[] yuv = new byte[WIDTH * HEIGHT * 3 / 2];
+        ParameterSweep.Run run = sweep.new Run(sweep.configs().get(0), FRAMES);
+        ParameterSweep.IntermediateCache cache = sweep.getCache();
+        for (int i = 0; i < FRAMES; i++) {
+            source.read(i, yuv);
+            TTCResult r = estimator.processFrame(yuv);
+            run.process(i, cache.blockSums(i, WIDTH, HEIGHT, 4).planes);
+            assertEquals("frame " + i, -4 * r.ttc, run.mTTC[i], 0);
+        }
+    }
+
+    public void testSecondSweepOnlyHitsTheCache() throws Exception {
+        BatchProcessor.SyntheticSource source = new BatchProcessor.SyntheticSource(WIDTH, HEIGHT, FRAMES, 0.01);
+        double[] truth = new double[FRAMES];
+        for (int i = 0; i < FRAMES; i++) truth[i] = source.timeToContact(i);
+        ParameterSweep sweep = new ParameterSweep(WIDTH, HEIGHT);
+        sweep.setThresholds(0, 0.5f);
+        sweep.setTemporalTaps(2, 3, 5);
+        List<ParameterSweep.Row> rows = sweep.run(source, truth);
+        assertEquals(6, rows.size());
+        ParameterSweep.IntermediateCache cache = sweep.getCache();
+        assertEquals(FRAMES, cache.misses);
+        sweep.setOrigins(new int[] { HEIGHT / 2 + 8, WIDTH / 2 });
+        rows = sweep.run(source, truth);
+        assertEquals(FRAMES, cache.misses);
+        for (ParameterSweep.Row row : rows) {
+            assertEquals(FRAMES - 4, row.frames);
+            assertTrue("error " + row.meanError, row.meanError < 0.05);
+        }
+    }
+
+    public void testAnotherSourceDoesNotReuseTheCache() throws Exception {
+        // same size and frame numbers, but approaching twice as fast
+        BatchProcessor.SyntheticSource slow = new BatchProcessor.SyntheticSource(WIDTH, HEIGHT, FRAMES, 0.01);
+        BatchProcessor.SyntheticSource fast = new BatchProcessor.SyntheticSource(WIDTH, HEIGHT, FRAMES, 0.02);
+        double[] truth = new double[FRAMES];
+        for (int i = 0; i < FRAMES; i++) truth[i] = fast.timeToContact(i);
+        ParameterSweep sweep = new ParameterSweep(WIDTH, HEIGHT);
+        sweep.run(slow, null);
+        List<ParameterSweep.Row> rows = sweep.run(fast, truth);
+        assertEquals(2 * FRAMES, sweep.getCache().misses);
+        assertTrue("error " + rows.get(0).meanError, rows.get(0).meanError < 0.05);
+    }
+}
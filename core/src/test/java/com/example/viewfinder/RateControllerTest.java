@@ -0,0 +1,132 @@
+package com.example.viewfinder;
+
+import junit.framework.TestCase;
+
+public class RateControllerTest extends TestCase {
+    static final long PERIOD = 66666667;     // 15 fps
+    static final long BUDGET = PERIOD * 3 / 4;
+
+    // processing time of a level on a cool phone: per pixel plus per block work
+    static long cost(RateController.Level level) {
+        EstimatorProfile p = level.profile;
+        return 60L * p.previewPixels + 1500L * (p.previewPixels / (p.block * p.block));
+    }
+
+    // Runs frames through the controller with a simple thermal model: the phone heats up with
+    // the share of each frame period spent processing (times warming) and throttles (slows
+    // down) as it warms. Returns the p90 processing time over the last frames.
+    static double run(RateController controller, int frames, double warming, double[] heat) {
+        long[] last = new long[300];
+        int dropped = 0;
+        for (int t = 0; t < frames; t++) {
+            RateController.Level level = controller.level();
+            if (t % level.interval != 0) continue;
+            double slowdown = 1 + heat[0];
+            long nanos = (long) (cost(level) * slowdown);
+            double duty = Math.min(1, (double) nanos / PERIOD / level.interval);
+            heat[0] += 0.002 * (warming * duty - heat[0]);
+            controller.frameProcessed(nanos, dropped);
+            dropped = (int) (nanos / PERIOD);   // frames that arrived while this one was processed
+            last[t % last.length] = nanos;
+        }
+        java.util.Arrays.sort(last);
+        return last[last.length * 9 / 10];
+    }
+
+    public void testLadderGetsCheaperEveryLevel() {
+        for (EstimatorProfile base : new EstimatorProfile[] {
+                EstimatorProfile.LATENCY, EstimatorProfile.BALANCED, EstimatorProfile.ACCURACY }) {
+            RateController.Level[] levels = RateController.ladder(base);
+            assertSame(base, levels[0].profile);
+            assertEquals(RateController.MAX_INTERVAL, levels[levels.length - 1].interval);
+            for (int k = 1; k < levels.length; k++) {
+                RateController.Level a = levels[k - 1], b = levels[k];
+                assertTrue(base.name + " level " + k, cost(b) / b.interval < cost(a) / a.interval);
+                assertTrue(b.profile.previewPixels / (b.profile.block * b.profile.block) >= RateController.MIN_BLOCKS);
+            }
+        }
+        assertEquals(7, RateController.ladder(EstimatorProfile.ACCURACY).length);
+    }
+
+    public void testLadderOnlyUsesPreviewSizesTheCameraHas() {
+        int[] sizes = { 1280 * 720, 640 * 480, 320 * 240 };     // no 160 x 120
+        RateController.Level[] levels = RateController.ladder(EstimatorProfile.ACCURACY, sizes);
+        assertEquals(6, levels.length);     // 640 x 480 4x4, 8x8, 320 x 240 4x4, 8x8, every 2nd, 3rd frame
+        for (int k = 1; k < levels.length; k++) {
+            RateController.Level a = levels[k - 1], b = levels[k];
+            int pa = RateController.nearestSize(sizes, a.profile.previewPixels);
+            int pb = RateController.nearestSize(sizes, b.profile.previewPixels);
+            // every level is cheaper: fewer pixels, the same pixels in coarser blocks, or fewer frames
+            assertTrue("level " + k, pb < pa || (pb == pa && b.profile.block > a.profile.block) || b.interval > a.interval);
+        }
+        // a camera with a single size: only coarser blocks and fewer frames
+        assertEquals(4, RateController.ladder(EstimatorProfile.ACCURACY, new int[] { 640 * 480 }).length);
+    }
+
+    public void testStaysAtFullQualityWhenThereIsTime() {
+        RateController controller = new RateController(EstimatorProfile.ACCURACY, 2 * BUDGET);
+        run(controller, 3000, 0, new double[] { 0 });
+        assertEquals(0, controller.levelIndex());
+        assertEquals(0, controller.adjustments());
+    }
+
+    public void testHoldsTheBudgetWhileThrottled() {
+        RateController controller = new RateController(EstimatorProfile.ACCURACY, BUDGET);
+        double[] heat = { 0 };
+        double p90 = run(controller, 20000, 3, heat);     // warm up, settle
+        assertTrue("p90 " + p90 / 1e6 + " ms", p90 <= BUDGET);
+        assertTrue(controller.levelIndex() > 0);
+        int adjustments = controller.adjustments();
+        run(controller, 20000, 3, heat);                  // steady state: no oscillation
+        assertTrue("adjustments " + (controller.adjustments() - adjustments), controller.adjustments() - adjustments <= 4);
+    }
+
+    public void testStepsBackUpWhenCooler() {
+        RateController controller = new RateController(EstimatorProfile.ACCURACY, BUDGET);
+        double[] heat = { 2 };      // starts hot
+        run(controller, 3000, 3, heat);
+        int hot = controller.levelIndex();
+        assertTrue(hot > 0);
+        heat[0] = 0;
+        run(controller, 20000, 0, heat);       // in the cold (no throttling)
+        assertTrue(controller.levelIndex() < hot);
+        assertTrue(controller.lastAdjustment().reason, controller.lastAdjustment().to < controller.lastAdjustment().from);
+    }
+
+    // TTC of a constant looming sequence (320 x 240), processing every level.interval-th frame,
+    // in the unit shown on screen
+    static double shownTTC(RateController.Level level, int lastFrame) {
+        BatchProcessor.SyntheticSource source = new BatchProcessor.SyntheticSource(320, 240, lastFrame + 1, 0.004);
+        TTCEstimator estimator = new TTCEstimator(320, 240, level.profile.block);
+        byte[] yuv = new byte[320 * 240 * 3 / 2];
+        TTCResult r = null;
+        for (int t = 0; t <= lastFrame; t += level.interval) {
+            source.read(t, yuv);
+            r = estimator.processFrame(yuv);
+        }
+        return r.ttc * level.profile.ttcScale(level.interval);
+    }
+
+    public void testShownTTCDoesNotDependOnTheInterval() {
+        RateController.Level[] levels = RateController.ladder(EstimatorProfile.ACCURACY);
+        RateController.Level every = levels[levels.length - 3], second = levels[levels.length - 2];
+        assertSame(every.profile, second.profile);
+        assertEquals(1, every.interval);
+        assertEquals(2, second.interval);
+        double ttc = shownTTC(every, 40);
+        assertEquals(ttc, shownTTC(second, 40), 0.03 * Math.abs(ttc));
+        // and across block sizes and frame rates: the same motion per frame at twice the frame
+        // rate is half the time
+        EstimatorProfile fast = new EstimatorProfile("fast", 320 * 240, 30, 4, false, false, EstimatorProfile.LOG_ERRORS);
+        double fastTTC = shownTTC(new RateController.Level(fast, 1), 40);
+        assertEquals(ttc, 2 * fastTTC, 0.03 * Math.abs(ttc));
+    }
+
+    public void testCriticalBatteryStepsDown() {
+        RateController controller = new RateController(EstimatorProfile.ACCURACY, 10 * BUDGET);
+        controller.setTemperature(46);
+        run(controller, 200, 0, new double[] { 0 });
+        assertTrue(controller.levelIndex() > 0);
+        assertEquals("battery critical", controller.lastAdjustment().reason);
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.viewfinder;
+
+import junit.framework.TestCase;
+
+public class TTCEstimatorTest extends TestCase {
+    static final int WIDTH = 640, HEIGHT = 480;
+
+    static byte[] loomingFrame(double scale) {
+        return LayoutBenchmark.syntheticFrame(WIDTH, HEIGHT, scale);
+    }
+
+    static void assertClose(String what, double expected, double actual, double relTol) {
+        assertEquals(what, expected, actual, Math.abs(expected) * relTol + 1e-9);
+    }
+
+    public void testFixedPointMatchesFloat() {
+        TTCEstimator floatEstimator = new TTCEstimator(WIDTH, HEIGHT);
+        TTCEstimator fixedEstimator = new TTCEstimator(WIDTH, HEIGHT);
+        fixedEstimator.setFixedPoint(true);
+        floatEstimator.getSelector().setSkipFit(2);     // always solve all three models
+        fixedEstimator.getSelector().setSkipFit(2);
+        for (int t = 0; t < 6; t++) {
+            byte[] frame = loomingFrame(1 + 0.02 * t);
+            TTCResult f = floatEstimator.processFrame(frame);
+            TTCResult i = fixedEstimator.processFrame(frame);
+            if (t < 3) continue;    // wait until the temporal history holds only real frames
+            TTCSums fs = floatEstimator.getSums(), is = fixedEstimator.getSums();
+            assertClose("sum_g_squared", fs.sum_g_squared, is.sum_g_squared, 1e-3);
+            assertClose("sum_g_et", fs.sum_g_et, is.sum_g_et, 1e-3);
+            assertClose("sum_g_squared_x_squared", fs.sum_g_squared_x_squared, is.sum_g_squared_x_squared, 1e-3);
+            assertClose("sum_g_y_et", fs.sum_g_y_et, is.sum_g_y_et, 1e-2);
+            assertClose("ttc1", f.ttc1, i.ttc1, 1e-2);
+            assertClose("ttc2", f.ttc2, i.ttc2, 5e-2);
+            assertClose("avgE_t", f.avgE_t, i.avgE_t, 1e-2);
+        }
+    }
+
+    public void testFixedPointHighContrastStaysFinite() {
+        // alternating black / white pixels give the largest possible gradients everywhere
+        byte[] a = new byte[WIDTH * HEIGHT * 3 / 2];
+        byte[] b = new byte[a.length];
+        // For compensation: frames that are dark (bright) but for a thin bright (dark) band have a
+        // small standard deviation, so they are scaled up by 2 towards a, and the band is far
+        // from their mean: twice the largest E_t there is without compensation.
+        byte[] dark = new byte[a.length], bright = new byte[a.length];
+        for (int pix = 0; pix < WIDTH * HEIGHT; pix++) {
+            int r = pix / WIDTH, c = pix % WIDTH;
+            a[pix] = (byte) (((r + c) & 1) == 0 ? 255 : 0);
+            b[pix] = (byte) (((r + c) & 1) == 0 ? 0 : 255);
+            boolean band = r < HEIGHT / 16;
+            dark[pix] = (byte) (band ? 255 : 0);
+            bright[pix] = (byte) (band ? 0 : 255);
+        }
+        // with 5 taps at t = 5, newest first: bright, dark, a (the gradients' frame), bright, dark
+        byte[][] compensated = { a, dark, bright, a, dark, bright };
+        for (boolean compensate : new boolean[] { false, true }) {
+            for (int block : new int[] { 2, 4, 8 }) {
+                TTCEstimator floatEstimator = new TTCEstimator(WIDTH, HEIGHT, block);
+                TTCEstimator fixedEstimator = new TTCEstimator(WIDTH, HEIGHT, block);
+                TTCEstimator incrementalEstimator = new TTCEstimator(WIDTH, HEIGHT, block);
+                fixedEstimator.setFixedPoint(true);
+                incrementalEstimator.setFixedPoint(true);
+                incrementalEstimator.setIncremental(true);
+                for (TTCEstimator e : new TTCEstimator[] { floatEstimator, fixedEstimator, incrementalEstimator }) {
+                    e.setTemporalTaps(5);  // largest E_t
+                    e.setIlluminationCompensation(compensate);
+                }
+                for (int t = 0; t < 6; t++) {
+                    byte[] frame = compensate ? compensated[t] : (t & 1) == 0 ? a : b;
+                    floatEstimator.processFrame(frame);
+                    fixedEstimator.processFrame(frame);
+                    incrementalEstimator.processFrame(frame);
+                }
+                String what = block + "x" + block + (compensate ? " compensated " : " ");
+                TTCSums fs = floatEstimator.getSums();
+                for (TTCSums is : new TTCSums[] { fixedEstimator.getSums(), incrementalEstimator.getSums() }) {
+                    assertTrue(what + "sum_g_squared_x_squared must not overflow", is.sum_g_squared_x_squared >= 0);
+                    assertClose(what + "sum_g_squared", fs.sum_g_squared, is.sum_g_squared, 1e-3);
+                    assertClose(what + "sum_ex_squared", fs.sum_ex_squared, is.sum_ex_squared, 1e-3);
+                    assertClose(what + "sum_et_squared", fs.sum_et_squared, is.sum_et_squared, 1e-3);
+                    assertClose(what + "sum_ex_et", fs.sum_ex_et, is.sum_ex_et, 1e-3);
+                }
+            }
+        }
+    }
+
+    // worst relative TTC error over a looming sequence, with the TTC converted to frames
+    static double worstError(int block, boolean fixedPoint) {
+        int w = 640, h = 480, frames = 12;
+        BatchProcessor.SyntheticSource source = new BatchProcessor.SyntheticSource(w, h, frames, 0.01);
+        TTCEstimator estimator = new TTCEstimator(w, h, block);
+        estimator.setFixedPoint(fixedPoint);
+        byte[] yuv = new byte[w * h * 3 / 2];
+        double worst = 0;
+        for (int t = 0; t < frames; t++) {
+            source.read(t, yuv);
+            TTCResult r = estimator.processFrame(yuv);
+            if (t < 3) continue;
+            // the 3-tap stencil estimates at t - 1, coordinates are in blocks
+            double truth = source.timeToContact(t - 1);
+            worst = Math.max(worst, Math.abs(-estimator.getBlock() * r.ttc - truth) / truth);
+        }
+        return worst;
+    }
+
+    public void testEveryBlockSizeEstimatesTheSameTTC() {
+        for (int block : new int[] { 2, 4, 8 }) {
+            for (boolean fixedPoint : new boolean[] { false, true }) {
+                double worst = worstError(block, fixedPoint);
+                assertTrue(block + "x" + block + (fixedPoint ? " fixed point" : " float") + " error " + worst, worst < 0.02);
+            }
+        }
+    }
+
+    public void testRestartForgetsTheFrameHistory() {
+        for (boolean fixedPoint : new boolean[] { false, true }) {
+            TTCEstimator estimator = new TTCEstimator(WIDTH, HEIGHT);
+            estimator.setFixedPoint(fixedPoint);
+            for (int t = 0; t < 5; t++) estimator.processFrame(loomingFrame(1 + 0.02 * t));
+            TemporalStencil stencil = estimator.mStencil;
+            estimator.restart();    // e.g. paused for a while: the next frame is far from the last
+            TTCResult r = estimator.processFrame(loomingFrame(1.5));
+            assertEquals(0f, r.maxE_t);
+            assertSame(stencil, estimator.mStencil);    // the ring is kept
+            assertFalse(estimator.getStats().exposureChanged());
+            r = estimator.processFrame(loomingFrame(1.52));
+            assertTrue(r.maxE_t > 0);
+        }
+    }
+}
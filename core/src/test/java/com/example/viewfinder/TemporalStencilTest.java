@@ -0,0 +1,127 @@
+package com.example.viewfinder;
+
+import junit.framework.TestCase;
+
+public class TemporalStencilTest extends TestCase {
+    static final int WIDTH = 64, HEIGHT = 48;
+    static final int[] TAPS = { 2, 3, 5 };
+
+    // uniform frame (NV21) with luma y - 16 = value
+    static byte[] flatFrame(int value) {
+        byte[] yuv = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int pix = 0; pix < WIDTH * HEIGHT; pix++) yuv[pix] = (byte) (16 + value);
+        for (int pix = WIDTH * HEIGHT; pix < yuv.length; pix++) yuv[pix] = (byte) 128;
+        return yuv;
+    }
+
+    static float lastAvgE_t(int taps, boolean fixedPoint, int[] values) {
+        TTCEstimator estimator = new TTCEstimator(WIDTH, HEIGHT);
+        estimator.setFixedPoint(fixedPoint);
+        estimator.setTemporalTaps(taps);
+        TTCResult r = null;
+        for (int value : values) r = estimator.processFrame(flatFrame(value));
+        return r.avgE_t;
+    }
+
+    public void testLinearRampIsExactForEveryStencil() {
+        int[] ramp = new int[8];
+        for (int t = 0; t < ramp.length; t++) ramp[t] = 40 + 3 * t;
+        for (int taps : TAPS) {
+            assertEquals(taps + "-tap float", 3 / 255.0, lastAvgE_t(taps, false, ramp), 1e-5);
+            assertEquals(taps + "-tap fixed point", 3 / 255.0, lastAvgE_t(taps, true, ramp), 1e-5);
+        }
+    }
+
+    public void testFiveTapIsExactForCubic() {
+        // luma t^3: derivative at the stencil center (t = 4) is 48, the 3-tap gives 76 at t = 5
+        int[] cubic = new int[7];
+        for (int t = 0; t < cubic.length; t++) cubic[t] = t * t * t;
+        assertEquals(48 / 255.0, lastAvgE_t(5, false, cubic), 1e-5);
+        assertEquals(48 / 255.0, lastAvgE_t(5, true, cubic), 1e-5);
+        assertEquals(76 / 255.0, lastAvgE_t(3, false, cubic), 1e-5);
+    }
+
+    public void testFirstFrameHasNoTemporalDerivative() {
+        for (int taps : TAPS) {
+            // float weights such as 8/12 do not cancel exactly, only up to rounding
+            assertEquals(0, lastAvgE_t(taps, false, new int[] { 100 }), 1e-7);
+            assertEquals(0, lastAvgE_t(taps, true, new int[] { 100 }), 0);
+        }
+    }
+
+    public void testCompensationRemovesGlobalBrightnessChange() {
+        // a uniform ramp is nothing but an offset change, compensated away for every stencil
+        int[] ramp = new int[8];
+        for (int t = 0; t < ramp.length; t++) ramp[t] = 40 + 3 * t;
+        for (int taps : TAPS) {
+            for (boolean fixedPoint : new boolean[] { false, true }) {
+                TTCEstimator estimator = new TTCEstimator(WIDTH, HEIGHT);
+                estimator.setFixedPoint(fixedPoint);
+                estimator.setTemporalTaps(taps);
+                estimator.setIlluminationCompensation(true);
+                TTCResult r = null;
+                for (int value : ramp) r = estimator.processFrame(flatFrame(value));
+                assertEquals(taps + "-tap " + (fixedPoint ? "fixed point" : "float"), 0, r.avgE_t, 1e-5);
+            }
+        }
+    }
+
+    // worst relative TTC error over a looming sequence with every 7th frame brightened by
+    // a gain of 1.08 and an offset of 6 (as from flicker or an exposure step)
+    static double worstFlickerError(boolean compensate, boolean fixedPoint) {
+        int w = 320, h = 240, frames = 30;
+        BatchProcessor.SyntheticSource source = new BatchProcessor.SyntheticSource(w, h, frames, 0.01);
+        TTCEstimator estimator = new TTCEstimator(w, h);
+        estimator.setFixedPoint(fixedPoint);
+        estimator.setIlluminationCompensation(compensate);
+        byte[] yuv = new byte[w * h * 3 / 2];
+        double worst = 0;
+        for (int t = 0; t < frames; t++) {
+            source.read(t, yuv);
+            if (t % 7 == 3) {
+                for (int pix = 0; pix < w * h; pix++) {
+                    int y = (int) Math.round(16 + ((yuv[pix] & 0xFF) - 16) * 1.08 + 6);
+                    yuv[pix] = (byte) Math.min(255, y);
+                }
+            }
+            TTCResult r = estimator.processFrame(yuv);
+            if (t < 4) continue;
+            // the 3-tap stencil estimates at t - 1, coordinates are in blocks
+            double truth = source.timeToContact(t - 1);
+            worst = Math.max(worst, Math.abs(-TTCEstimator.BLOCK * r.ttc - truth) / truth);
+        }
+        return worst;
+    }
+
+    public void testCompensationSuppressesFlicker() {
+        for (boolean fixedPoint : new boolean[] { false, true }) {
+            double plain = worstFlickerError(false, fixedPoint);
+            double compensated = worstFlickerError(true, fixedPoint);
+            assertTrue("flicker shows up without compensation: " + plain, plain > 0.05);
+            assertTrue("compensated " + compensated + " vs " + plain, compensated < plain / 4);
+        }
+    }
+
+    public void testBlockGradientsMatchPerPixelSums() {
+        // the telescoped block sums must equal averaging the per-pixel differences
+        byte[] yuv = LayoutBenchmark.syntheticFrame(WIDTH, HEIGHT, 0.3);
+        TTCEstimator estimator = new TTCEstimator(WIDTH, HEIGHT);
+        estimator.setTemporalTaps(2);
+        estimator.processFrame(yuv);
+        float[] e = new float[WIDTH * HEIGHT];
+        TTCEstimator.decodeYUV420SPGrayscale(null, e, yuv, WIDTH, HEIGHT);
+        int subCols = WIDTH / TTCEstimator.BLOCK;
+        for (int k = 0; k < estimator.subE_x.length; k++) {
+            int a = k / subCols, b = k % subCols;
+            float xSum = 0, ySum = 0;
+            for (int r = a * 4; r < a * 4 + 4; r++) {
+                for (int c = b * 4; c < b * 4 + 4; c++) {
+                    if (r < HEIGHT - 1) xSum += e[r * WIDTH + c] - e[(r + 1) * WIDTH + c];
+                    if (c < WIDTH - 1) ySum += e[r * WIDTH + c] - e[r * WIDTH + c + 1];
+                }
+            }
+            assertEquals("E_x block " + k, xSum / 16, estimator.subE_x[k], 1e-5);
+            assertEquals("E_y block " + k, ySum / 16, estimator.subE_y[k], 1e-5);
+        }
+    }
+}